@@ -0,0 +1,94 @@
+package siege;
+
+import mindustry.Vars;
+import mindustry.content.Blocks;
+import mindustry.core.ContentLoader;
+import mindustry.core.World;
+import mindustry.game.Team;
+import mindustry.gen.Player;
+import mindustry.world.Block;
+import mindustry.world.Tile;
+import mindustry.world.Tiles;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the build action filter's placement check. Run with the gc profiler (-PjmhArgs="-prof gc CanPlace"), where gc.alloc.rate.norm should be zero bytes per operation.
+ * Loads the base content and an empty world of stone, but no textures or server. With no cores placed, the whole world is dead zone, so every placement that passes the team, ban and keep checks is rejected by the dead zone lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CanPlaceBenchmark {
+    private static final int WORLD_SIZE = 500;
+    // Placements cycled through, so that the branch predictor sees a mix of outcomes
+    private static final int PLACEMENTS = 1024;
+
+    private Player citadelPlayer;
+    private Player raiderPlayer;
+    private final int[] xs = new int[PLACEMENTS];
+    private final int[] ys = new int[PLACEMENTS];
+    private final Block[] blocks = new Block[PLACEMENTS];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Vars.content = new ContentLoader();
+        Vars.content.createBaseContent();
+        Vars.state = new mindustry.core.GameState();
+        Vars.world = new World();
+        Tiles tiles = Vars.world.resize(WORLD_SIZE, WORLD_SIZE);
+        for (int y = 0; y < WORLD_SIZE; y++) {
+            for (int x = 0; x < WORLD_SIZE; x++) {
+                tiles.set(x, y, new Tile(x, y, Blocks.stone, Blocks.air, Blocks.air));
+            }
+        }
+
+        Keep.init();
+        DeadZone.init();
+        DeadZone.initCache();
+        RuleSetter.initRules();
+        Gamedata.reset();
+        Gamedata.gameStarted = true;
+        TickContext.capture();
+
+        citadelPlayer = Player.create();
+        citadelPlayer.team(Team.green);
+        raiderPlayer = Player.create();
+        raiderPlayer.team(Team.all[Constants.TEAM_STARTING_ID + 1]);
+
+        Block[] candidates = {Blocks.duo, Blocks.lancer, Blocks.copperWall, Blocks.conveyor, Blocks.mechanicalDrill, Blocks.groundFactory};
+        Random random = new Random(42);
+        for (int i = 0; i < PLACEMENTS; i++) {
+            xs[i] = random.nextInt(WORLD_SIZE);
+            ys[i] = random.nextInt(WORLD_SIZE);
+            blocks[i] = candidates[random.nextInt(candidates.length)];
+        }
+    }
+
+    @Benchmark
+    public boolean citadel() {
+        int i = next++ & (PLACEMENTS - 1);
+        return SiegePlugin.canPlace(citadelPlayer, xs[i], ys[i], blocks[i]);
+    }
+
+    @Benchmark
+    public boolean raider() {
+        int i = next++ & (PLACEMENTS - 1);
+        return SiegePlugin.canPlace(raiderPlayer, xs[i], ys[i], blocks[i]);
+    }
+}
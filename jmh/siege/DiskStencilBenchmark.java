@@ -0,0 +1,142 @@
+package siege;
+
+import arc.math.Mathf;
+import arc.math.geom.Point2;
+import mindustry.Vars;
+import mindustry.content.Blocks;
+import mindustry.core.ContentLoader;
+import mindustry.core.World;
+import mindustry.world.Block;
+import mindustry.world.Tile;
+import mindustry.world.Tiles;
+import mindustry.world.blocks.storage.CoreBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares clearing the area of a nucleus with the old DeadZone.reloadCore loop and with DeadZone.addCore and removeCore, which fill the core's DiskStencil.
+ * Loads the base content and an empty world of stone, but no textures or server. Cores are builds which are never added to the world, counted by DeadZone directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskStencilBenchmark {
+    private static final int WORLD_SIZE = 500;
+
+    // Cores in the world. The nucleus being cleared is the first one.
+    @Param({"1", "16", "64"})
+    public int coreCount;
+
+    private CoreBlock.CoreBuild[] cores;
+    private boolean[] deadZone;
+    private boolean added = true;
+
+    @Setup
+    public void setup() {
+        Vars.content = new ContentLoader();
+        Vars.content.createBaseContent();
+        Vars.state = new mindustry.core.GameState();
+        Vars.world = new World();
+        Tiles tiles = Vars.world.resize(WORLD_SIZE, WORLD_SIZE);
+        for (int y = 0; y < WORLD_SIZE; y++) {
+            for (int x = 0; x < WORLD_SIZE; x++) {
+                tiles.set(x, y, new Tile(x, y, Blocks.stone, Blocks.air, Blocks.air));
+            }
+        }
+        DeadZone.init();
+        DeadZone.initCache();
+
+        Block[] types = {Blocks.coreShard, Blocks.coreFoundation, Blocks.coreNucleus};
+        Random random = new Random(42);
+        cores = new CoreBlock.CoreBuild[coreCount];
+        for (int i = 0; i < coreCount; i++) {
+            Block type = i == 0 ? Blocks.coreNucleus : types[random.nextInt(types.length)];
+            int x = WORLD_SIZE / 2;
+            int y = WORLD_SIZE / 2;
+            // Cores are never added to the world, so DeadZone would take one overlapping the nucleus for a core it replaced
+            while (i > 0 && Math.abs(x - WORLD_SIZE / 2) < 10 && Math.abs(y - WORLD_SIZE / 2) < 10) {
+                x = 60 + random.nextInt(WORLD_SIZE - 120);
+                y = 60 + random.nextInt(WORLD_SIZE - 120);
+            }
+            CoreBlock.CoreBuild core = (CoreBlock.CoreBuild) type.newBuilding();
+            core.block = type;
+            core.tile = Vars.world.tile(x, y);
+            cores[i] = core;
+            DeadZone.addCore(core);
+        }
+        deadZone = new boolean[WORLD_SIZE * WORLD_SIZE];
+    }
+
+    // The loop DeadZone.reloadCore ran before the stencils: a distance check against every core for each tile in the bounding box
+    @Benchmark
+    public void reloadCoreLoop(Blackhole blackhole) {
+        CoreBlock.CoreBuild core = cores[0];
+        float radius = DeadZone.getCoreSafetyRadius(core.block);
+        int minX = Math.max(0, Mathf.floor(core.tileX() - radius - 1));
+        int minY = Math.max(0, Mathf.floor(core.tileY() - radius - 1));
+        int maxX = Math.min(WORLD_SIZE - 1, Mathf.ceil(core.tileX() + radius + 1));
+        int maxY = Math.min(WORLD_SIZE - 1, Mathf.ceil(core.tileY() + radius + 1));
+        for (int x = minX; x < maxX; x++) {
+            for (int y = minY; y < maxY; y++) {
+                hardGetDeadZone(new Point2(x, y));
+            }
+        }
+        blackhole.consume(deadZone);
+    }
+
+    private void hardGetDeadZone(Point2 tile) {
+        int index = tile.x + tile.y * WORLD_SIZE;
+        if (Vars.world.tile(tile.x, tile.y).floor() == Blocks.grass.asFloor()) {
+            deadZone[index] = false;
+            return;
+        }
+
+        // Gamedata.getAllCores() built a new array on every call
+        CoreBlock.CoreBuild[] all = new CoreBlock.CoreBuild[cores.length];
+        System.arraycopy(cores, 0, all, 0, cores.length);
+
+        boolean result = true;
+        for (CoreBlock.CoreBuild core : all) {
+            float x = core.tileX();
+            float y = core.tileY();
+            if (core.block.size % 2 == 0) {
+                x += 0.5f;
+                y += 0.5f;
+            }
+            if (Mathf.dst2(tile.x, tile.y, x, y) < DeadZone.getCoreSafetyRadius2(core.block)) {
+                result = false;
+                break;
+            }
+        }
+        deadZone[index] = result;
+    }
+
+    // What DeadZone does now, which does not depend on how many other cores exist
+    @Benchmark
+    public void stencilFill(Blackhole blackhole) {
+        // Alternate between removing and adding the core, so that the coverage stays bounded
+        if (added) {
+            DeadZone.removeCore(cores[0]);
+        } else {
+            DeadZone.addCore(cores[0]);
+        }
+        added = !added;
+        blackhole.consume(DeadZone.getVersion());
+    }
+}
@@ -22,8 +22,15 @@ public final class Constants {
     public static final long AFK_TIMEOUT_PERIOD = 10 * 60 * 1000; // Time (milliseconds) that no players can be active in the server before the game automatically ends
     public static final boolean CITADEL_WINS_ON_RAIDER_TIMEOUT = true;
     public static final int TEAM_STARTING_ID = 7; // Lowest ID that will be allocated to raider teams
+    public static final int PERSISTENT_PLAYER_CAP = 1000; // Players kept in memory past which the least recently seen offline ones are moved to the store
+    public static final int PERSISTENT_PLAYER_STORE_CAP = 50000; // Evicted players kept in the store past which the least recently seen are forgotten
+    public static final long PERSISTENT_PLAYER_EXPIRY = 30L * 24 * 60 * 60 * 1000; // Time (milliseconds) since an evicted player was last seen after which they are forgotten
 
     public static final Block DEAD_ZONE_FILLER_FLOOR = Blocks.denseRedStone;
+    public static final boolean ASYNC_DEAD_ZONE_REBUILD = true; // Whether full dead zone rebuilds during a game are computed off the main thread. The rebuild at game start always runs on it.
+    public static final long DEAD_ZONE_UPDATE_BUDGET_NANOS = 2_000_000; // Time each tick may spend rewriting the dead zone floor
+    public static final int DEAD_ZONE_SYNC_TILES_PER_TICK = 1500; // Floor changes sent to clients each tick. Larger rewrites, such as the one at game start, are streamed over several ticks.
+    public static final int DEAD_ZONE_WORLD_RESYNC_TILES = 1_000_000; // Waiting floor changes past which clients are sent the whole world instead, which only maps far larger than usual reach
 
     public static final Seq<Block> CORE_TYPES = new Seq<>(new Block[]{Blocks.coreShard, Blocks.coreFoundation, Blocks.coreNucleus});
 
@@ -47,6 +54,8 @@ public final class Constants {
     public static final int GUARANTEED_KEEP_TIME_SECONDS = 15 * 60;
     public static final int KEEP_RADIUS = 120;
     public static final Effect KEEP_EFFECT = Fx.hitSquaresColor;
+    public static final int KEEP_EFFECT_INTERVAL_FRAMES = 10; // Shortest time between showings of the keep border
+    public static final int KEEP_EFFECT_PACKET_BUDGET = 1000; // Effect packets a showing of the keep border may send before showings are spaced out further
     public static final float DEAD_ZONE_DAMAGE_CONSTANT_TICK = 55f / 60f; // Absolute damage every tick
     public static final float DEAD_ZONE_DAMAGE_PERCENT_TICK = 1.8f / 100f / 60f; // Percent of max health every tick
     public static final List<UnitType> DEAD_ZONE_IMMUNE_TYPES = List.of(new UnitType[] {
@@ -229,5 +238,8 @@ public final class Constants {
                 new Point2(1, 0),
                 new Point2(1, 1)
         };
+
+        // TURRET_BLOCKS, for membership checks that don't scan the list
+        public static final ObjectSet<Block> TURRET_BLOCK_SET = ObjectSet.with(Seq.with(TURRET_BLOCKS));
     }
 }
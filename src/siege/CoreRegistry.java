@@ -0,0 +1,181 @@
+package siege;
+
+import arc.math.Mathf;
+import arc.math.geom.Point2;
+import arc.struct.IntMap;
+import arc.struct.Seq;
+import mindustry.game.Team;
+import mindustry.gen.Building;
+import mindustry.world.blocks.storage.CoreBlock;
+
+import static mindustry.Vars.world;
+
+/**
+ * Keeps track of every live player core, bucketed on a uniform grid so that nearby cores can be found without scanning all of them.
+ */
+public final class CoreRegistry {
+    // Side length of a grid bucket, in tiles
+    private static final int BUCKET_SIZE = (int) Constants.NUCLEUS_DEAD_ZONE_RADIUS;
+
+    // All registered cores, keyed by their packed tile position
+    private static final IntMap<CoreBlock.CoreBuild> cores = new IntMap<>();
+    private static final Seq<CoreBlock.CoreBuild> allCores = new Seq<>(false);
+    private static Seq<CoreBlock.CoreBuild>[] buckets;
+    private static int bucketsX;
+    private static int bucketsY;
+
+    /**
+     * Sizes the grid for the current world and registers the cores that already exist on it. Should be called once the world has loaded.
+     */
+    @SuppressWarnings("unchecked")
+    public static void init() {
+        cores.clear();
+        allCores.clear();
+        bucketsX = Math.max(1, Mathf.ceil(world.width() / (float) BUCKET_SIZE));
+        bucketsY = Math.max(1, Mathf.ceil(world.height() / (float) BUCKET_SIZE));
+        buckets = new Seq[bucketsX * bucketsY];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Seq<>(false);
+        }
+
+        for (CoreBlock.CoreBuild core : Team.green.cores()) {
+            add(core);
+        }
+    }
+
+    /**
+     * Registers a core. Replaces whichever core was previously registered at the same position, and any core under it whose build has been replaced.
+     * @param core The core which now exists
+     */
+    public static void add(CoreBlock.CoreBuild core) {
+        if (buckets == null) return;
+        int position = core.tile.pos();
+        CoreBlock.CoreBuild previous = cores.put(position, core);
+        if (previous == core) return;
+        if (previous != null) {
+            unlist(previous);
+        }
+        // Upgrading a core in place swaps its build without any destroy event, and the upgrade may not share its tile
+        int offset = core.block.sizeOffset;
+        for (int dy = 0; dy < core.block.size; dy++) {
+            for (int dx = 0; dx < core.block.size; dx++) {
+                int covered = Point2.pack(core.tileX() + offset + dx, core.tileY() + offset + dy);
+                CoreBlock.CoreBuild replaced = cores.get(covered);
+                if (replaced != null && replaced != core && isReplaced(replaced)) {
+                    cores.remove(covered);
+                    unlist(replaced);
+                }
+            }
+        }
+        allCores.add(core);
+        bucket(core.tileX(), core.tileY()).add(core);
+    }
+
+    /**
+     * Deregisters a core. If a core whose build has been replaced is registered at its position instead, that core is deregistered.
+     * @param core The core which no longer exists
+     */
+    public static void remove(Building core) {
+        if (buckets == null) return;
+        int position = core.tile.pos();
+        CoreBlock.CoreBuild registered = cores.get(position);
+        if (registered == null || (registered != core && !isReplaced(registered))) return;
+        cores.remove(position);
+        unlist(registered);
+    }
+
+    /**
+     * Checks whether a core's build is no longer the one on its tile, as happens to the old build when a core is upgraded in place.
+     * @param core The core to check
+     * @return Whether the core has been removed or replaced
+     */
+    public static boolean isReplaced(Building core) {
+        return !core.isValid() || core.tile.build != core;
+    }
+
+    private static void unlist(CoreBlock.CoreBuild core) {
+        allCores.remove(core, true);
+        bucket(core.tileX(), core.tileY()).remove(core, true);
+    }
+
+    /**
+     * @return The number of registered cores
+     */
+    public static int size() {
+        return cores.size;
+    }
+
+    /**
+     * @return All registered cores. Should not be modified.
+     */
+    public static Seq<CoreBlock.CoreBuild> all() {
+        return allCores;
+    }
+
+    /**
+     * Checks whether any core lies strictly within a distance of a point.
+     * @param x The x position of the point, in tiles
+     * @param y The y position of the point, in tiles
+     * @param radius The distance to check, in tiles
+     * @param team Only cores of this team count. Null counts cores of any team.
+     * @return Whether such a core exists
+     */
+    public static boolean anyWithin(float x, float y, float radius, Team team) {
+        if (buckets == null) return false;
+        float radius2 = radius * radius;
+        int minX = bucketIndex(x - radius, bucketsX);
+        int minY = bucketIndex(y - radius, bucketsY);
+        int maxX = bucketIndex(x + radius, bucketsX);
+        int maxY = bucketIndex(y + radius, bucketsY);
+        for (int bucketY = minY; bucketY <= maxY; bucketY++) {
+            for (int bucketX = minX; bucketX <= maxX; bucketX++) {
+                Seq<CoreBlock.CoreBuild> bucket = buckets[bucketX + bucketY * bucketsX];
+                for (int i = 0; i < bucket.size; i++) {
+                    CoreBlock.CoreBuild core = bucket.get(i);
+                    if ((team == null || core.team == team) && Mathf.dst2(x, y, core.tileX(), core.tileY()) < radius2) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds all cores strictly within a distance of a point.
+     * @param x The x position of the point, in tiles
+     * @param y The y position of the point, in tiles
+     * @param radius The distance to check, in tiles
+     * @param out The sequence to add the found cores to. Is not cleared first.
+     * @return The given sequence
+     */
+    public static Seq<CoreBlock.CoreBuild> near(float x, float y, float radius, Seq<CoreBlock.CoreBuild> out) {
+        if (buckets == null) return out;
+        float radius2 = radius * radius;
+        int minX = bucketIndex(x - radius, bucketsX);
+        int minY = bucketIndex(y - radius, bucketsY);
+        int maxX = bucketIndex(x + radius, bucketsX);
+        int maxY = bucketIndex(y + radius, bucketsY);
+        for (int bucketY = minY; bucketY <= maxY; bucketY++) {
+            for (int bucketX = minX; bucketX <= maxX; bucketX++) {
+                Seq<CoreBlock.CoreBuild> bucket = buckets[bucketX + bucketY * bucketsX];
+                for (int i = 0; i < bucket.size; i++) {
+                    CoreBlock.CoreBuild core = bucket.get(i);
+                    if (Mathf.dst2(x, y, core.tileX(), core.tileY()) < radius2) {
+                        out.add(core);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    private static Seq<CoreBlock.CoreBuild> bucket(int x, int y) {
+        return buckets[bucketIndex(x, bucketsX) + bucketIndex(y, bucketsY) * bucketsX];
+    }
+
+    // Converts a tile coordinate into a bucket coordinate, clamped to the grid
+    private static int bucketIndex(float position, int bucketCount) {
+        return Mathf.clamp(Mathf.floor(position / BUCKET_SIZE), 0, bucketCount - 1);
+    }
+}
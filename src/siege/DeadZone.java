@@ -2,83 +2,282 @@ package siege;
 
 import arc.math.Mathf;
 import arc.math.geom.Point2;
+import arc.struct.IntMap;
+import arc.struct.IntQueue;
+import arc.struct.IntSeq;
+import arc.struct.ObjectMap;
+import arc.struct.Seq;
 import mindustry.content.Blocks;
 import mindustry.gen.Building;
+import mindustry.gen.Call;
+import mindustry.gen.Groups;
+import mindustry.gen.Player;
 import mindustry.world.Block;
 import mindustry.world.Tile;
-import mindustry.world.blocks.environment.Floor;
 import mindustry.world.blocks.storage.CoreBlock;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static mindustry.Vars.content;
+import static mindustry.Vars.netServer;
 import static mindustry.Vars.world;
 
 public final class DeadZone {
     // All true for setup, then cache set up when game begins
     // Should not be read or used at all during setup.
-    private static boolean[][] deadZoneCache;
-    // The floor beneath the dead zone
-    private static Floor[][] actualFloor;
-    private static Floor[][] actualOverlay;
+    // One bit per tile, row-major (index = x + y * width).
+    private static long[] deadZoneCache;
+    // The floor beneath the dead zone, as block ids into content.blocks()
+    private static short[] actualFloor;
+    private static short[] actualOverlay;
+    // How many counted cores cover each tile. A tile is in the dead zone exactly when no core covers it and it is not grass.
+    private static short[] coverage;
+    // Cores currently counted in coverage, keyed by their packed tile position
+    private static final IntMap<CoreBlock.CoreBuild> coveringCores = new IntMap<>();
+    // Tiles whose floor has been rewritten but not yet sent to clients, oldest first, and what their floor and overlay ids were when clients last saw them
+    private static final IntQueue pendingSyncTiles = new IntQueue();
+    private static final IntQueue pendingSyncPrevious = new IntQueue();
+    private static long[] pendingSyncMask;
+    // The area each core type clears, built once by init()
+    private static final ObjectMap<Block, DiskStencil> stencils = new ObjectMap<>();
+    // Incremented once for each batch of dead zone bits that may have changed: an initCache, a cover, or an applied rebuild
+    private static int version = 0;
+    // Dimensions of the world the cache was built for
+    private static int width;
+    private static int height;
+
+    // A full recomputation of the coverage running on the worker pool, or null
+    private static Rebuild rebuild;
+    // Whether coverage has been rebuilt since initCache marked every tile dead
+    private static boolean rebuiltSinceInit = false;
+    private static final ForkJoinPool rebuildPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    // Coverage changes made while a rebuild was running, to be replayed onto its result
+    private static final Seq<CoreBlock.CoreBuild> rebuildLogCores = new Seq<>();
+    private static final IntSeq rebuildLogDeltas = new IntSeq();
 
-    // Are we currently in the process of updating the dead zone?
-    private static boolean updatingDeadZone = false;
-    private static int updateIndex = 0;
-    // How many ticks should writing the dead zone be staggered across?
-    private static final int UPDATE_DIVISIONS = 2500;
+    // Side length of the square chunks that floor rewrites are tracked in, in tiles
+    private static final int CHUNK_SIZE = 32;
+    // Running average of how long rewriting one chunk takes, in nanoseconds
+    private static float averageChunkNanos = 0f;
+    // Chunks whose floor may not match the cache, in the order they were marked
+    private static final IntQueue dirtyChunks = new IntQueue();
+    private static long[] dirtyChunkMask;
+    private static int chunksX;
+    private static int chunksY;
 
     /**
      * This should be called once every tick.
+     * Rewrites dirty chunks until Constants.DEAD_ZONE_UPDATE_BUDGET_NANOS is used up, always making progress on at least one.
      */
     public static void update() {
-        if (updatingDeadZone) {
-            int i = updateIndex;
-            int x = i % world.width();
-            int y = i / world.width();
-            while (x < world.width() && y < world.height()) {
-                Block floor = world.floor(x, y);
-                if (floor == Blocks.grass.asFloor()) {
-                    // No dead zone on grass :)
-                    deadZoneCache[x][y] = false;
-                }
-                Block desiredFloor;
-                Block desiredOverlay;
-                if (getDeadZone(new Point2(x, y))) {
-                    desiredFloor = Constants.DEAD_ZONE_FILLER_FLOOR;
-                    desiredOverlay = Blocks.air;
-                } else {
-                    desiredFloor = actualFloor[x][y];
-                    desiredOverlay = actualOverlay[x][y];
-                }
-                if (floor != desiredFloor) {
-                    world.tile(x, y).setFloorNet(desiredFloor, desiredOverlay);
-                }
+        if (rebuild != null && rebuild.task.isDone()) {
+            applyRebuild();
+        }
+
+        long start = System.nanoTime();
+        long chunkStart = start;
+        while (dirtyChunks.size > 0) {
+            rewriteChunk(dirtyChunks.removeFirst());
+            long now = System.nanoTime();
+            float chunkNanos = now - chunkStart;
+            averageChunkNanos = averageChunkNanos == 0f ? chunkNanos : averageChunkNanos * 0.95f + chunkNanos * 0.05f;
+            chunkStart = now;
+            if (now - start + averageChunkNanos > Constants.DEAD_ZONE_UPDATE_BUDGET_NANOS) break;
+        }
+
+        syncFloor();
+    }
+
+    /**
+     * @return How many chunks are waiting to be rewritten
+     */
+    public static int getBacklog() {
+        return dirtyChunks.size;
+    }
+
+    /**
+     * @return Roughly how many ticks it will take to rewrite every waiting chunk at the current budget
+     */
+    public static int getTicksToConverge() {
+        if (dirtyChunks.size == 0) return 0;
+        float chunksPerTick = Math.max(1f, Constants.DEAD_ZONE_UPDATE_BUDGET_NANOS / Math.max(1f, averageChunkNanos));
+        return Mathf.ceil(dirtyChunks.size / chunksPerTick);
+    }
+
+    /**
+     * @return Whether any part of the world floor is still waiting to be rewritten to match the dead zone
+     */
+    public static boolean isUpdatingDeadZone() {
+        return dirtyChunks.size > 0;
+    }
 
-                i += UPDATE_DIVISIONS;
-                x = i % world.width();
-                y = i / world.width();
+    // Rewrites every tile in a chunk whose floor doesn't match the cache
+    private static void rewriteChunk(int chunk) {
+        dirtyChunkMask[chunk >>> 6] &= ~(1L << chunk);
+        int minX = (chunk % chunksX) * CHUNK_SIZE;
+        int minY = (chunk / chunksX) * CHUNK_SIZE;
+        int maxX = Math.min(width, minX + CHUNK_SIZE);
+        int maxY = Math.min(height, minY + CHUNK_SIZE);
+        for (int y = minY; y < maxY; y++) {
+            for (int x = minX; x < maxX; x++) {
+                writeFloor(index(x, y));
             }
+        }
+    }
+
+    // Queues the chunk containing a tile to be rewritten
+    private static void markDirty(int x, int y) {
+        int chunk = (x / CHUNK_SIZE) + (y / CHUNK_SIZE) * chunksX;
+        if ((dirtyChunkMask[chunk >>> 6] & (1L << chunk)) != 0) return;
+        dirtyChunkMask[chunk >>> 6] |= 1L << chunk;
+        dirtyChunks.addLast(chunk);
+    }
+
+    // Sends up to Constants.DEAD_ZONE_SYNC_TILES_PER_TICK waiting floors to clients, so that large rewrites are streamed over several ticks
+    private static void syncFloor() {
+        if (pendingSyncTiles.size == 0) return;
+
+        if (pendingSyncTiles.size >= Constants.DEAD_ZONE_WORLD_RESYNC_TILES) {
+            // Only resend the world once the rest of the rewrite has finished
+            if (isUpdatingDeadZone()) return;
+            // Past this point, streaming the floors would take longer than reloading the whole world
+            for (Player player : Groups.player) {
+                Call.worldDataBegin(player.con);
+                netServer.sendWorldData(player);
+                RuleSetter.forgetPlayer(player);
+            }
+            while (pendingSyncTiles.size > 0) {
+                int i = pendingSyncTiles.removeFirst();
+                pendingSyncPrevious.removeFirst();
+                pendingSyncMask[i >>> 6] &= ~(1L << i);
+            }
+            return;
+        }
 
-            updateIndex ++;
-            if (updateIndex == UPDATE_DIVISIONS) {
-                updatingDeadZone = false;
+        int sent = 0;
+        while (pendingSyncTiles.size > 0 && sent < Constants.DEAD_ZONE_SYNC_TILES_PER_TICK) {
+            int i = pendingSyncTiles.removeFirst();
+            int previous = pendingSyncPrevious.removeFirst();
+            pendingSyncMask[i >>> 6] &= ~(1L << i);
+            Tile tile = world.tile(i % width, i / width);
+            // Floors which changed and then changed back are already correct on clients
+            if (previous != packFloor(tile.floor(), tile.overlay())) {
+                Call.setFloor(tile, tile.floor(), tile.overlay());
+                sent++;
             }
         }
     }
 
-    public static boolean isUpdatingDeadZone() {
-        return updatingDeadZone;
+    private static int packFloor(Block floor, Block overlay) {
+        return (floor.id << 16) | (overlay.id & 0xFFFF);
+    }
+
+    /**
+     * Precomputes the area each core type clears. Should be called once when the plugin loads.
+     */
+    public static void init() {
+        stencils.clear();
+        for (Block core : Constants.CORE_TYPES) {
+            stencils.put(core, new DiskStencil(core));
+        }
+    }
+
+    /**
+     * Discards the cache built for the previous world. Until initCache is called again, every tile reads as dead zone and nothing is rewritten.
+     * Should be called once a new world has loaded.
+     */
+    public static void reset() {
+        deadZoneCache = null;
+        actualFloor = null;
+        actualOverlay = null;
+        coverage = null;
+        coveringCores.clear();
+        pendingSyncMask = null;
+        pendingSyncTiles.clear();
+        pendingSyncPrevious.clear();
+        // A rebuild still running on the pool is left to finish, and its result dropped
+        rebuild = null;
+        rebuiltSinceInit = false;
+        rebuildLogCores.clear();
+        rebuildLogDeltas.clear();
+        dirtyChunks.clear();
+        dirtyChunkMask = null;
+        width = 0;
+        height = 0;
+        chunksX = 0;
+        chunksY = 0;
+        version++;
+    }
+
+    /**
+     * @return Whether the cache has been built for the current world
+     */
+    public static boolean isReady() {
+        return deadZoneCache != null;
     }
 
     public static void initCache() {
-        deadZoneCache = new boolean[world.width()][world.height()];
-        actualFloor = new Floor[world.width()][world.height()];
-        actualOverlay = new Floor[world.width()][world.height()];
-        for (int x = 0; x < world.width(); x ++) {
-            for (int y = 0; y < world.height(); y++) {
-                deadZoneCache[x][y] = true;
-                actualFloor[x][y] = world.tile(x, y).floor();
-                actualOverlay[x][y] = world.tile(x, y).overlay();
+        width = world.width();
+        height = world.height();
+        int tileCount = width * height;
+        deadZoneCache = new long[(tileCount + 63) >>> 6];
+        actualFloor = new short[tileCount];
+        actualOverlay = new short[tileCount];
+        coverage = new short[tileCount];
+        coveringCores.clear();
+        pendingSyncMask = new long[deadZoneCache.length];
+        chunksX = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        chunksY = (height + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        dirtyChunkMask = new long[(chunksX * chunksY + 63) >>> 6];
+        dirtyChunks.clear();
+        rebuild = null;
+        rebuiltSinceInit = false;
+        rebuildLogCores.clear();
+        rebuildLogDeltas.clear();
+        pendingSyncTiles.clear();
+        pendingSyncPrevious.clear();
+        for (int y = 0; y < height; y ++) {
+            for (int x = 0; x < width; x++) {
+                Tile tile = world.tile(x, y);
+                int i = index(x, y);
+                actualFloor[i] = tile.floor().id;
+                actualOverlay[i] = tile.overlay().id;
+                // No dead zone on grass :)
+                setDead(i, !isGrass(i));
             }
         }
+        version++;
+    }
+
+    // Row-major index of a tile within the cache
+    private static int index(int x, int y) {
+        return x + y * width;
+    }
+
+    private static boolean isDead(int index) {
+        return (deadZoneCache[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static boolean isGrass(int index) {
+        return actualFloor[index] == Blocks.grass.id;
+    }
+
+    // Callers bump version once for the whole batch of tiles they change
+    private static void setDead(int index, boolean dead) {
+        if (dead) {
+            deadZoneCache[index >>> 6] |= 1L << index;
+        } else {
+            deadZoneCache[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * @return A counter which changes whenever any part of the dead zone may have changed. Results of getDeadZone stay valid while it is unchanged.
+     */
+    public static int getVersion() {
+        return version;
     }
 
     /**
@@ -109,7 +308,7 @@ public final class DeadZone {
      */
     public static boolean getDeadZone(Tile tile) {
         if (tile == null) return true;
-        return deadZoneCache[tile.x][tile.y];
+        return getDeadZone(tile.x, tile.y);
     }
 
     /**
@@ -119,72 +318,398 @@ public final class DeadZone {
      */
     public static boolean getDeadZone(Point2 point) {
         if (point == null) return true;
-        if (point.x < 0 || point.y < 0 || point.x >= deadZoneCache.length || point.y >= deadZoneCache[0].length) return true;
-        return deadZoneCache[point.x][point.y];
+        return getDeadZone(point.x, point.y);
+    }
+
+    /**
+     * Finds if a given point is in the dead zone.
+     * @param x The x position of the world grid point to check
+     * @param y The y position of the world grid point to check
+     * @return Whether the tile is in the dead zone
+     */
+    public static boolean getDeadZone(int x, int y) {
+        if (deadZoneCache == null) return true;
+        if (x < 0 || y < 0 || x >= width || y >= height) return true;
+        return isDead(index(x, y));
     }
 
     /**
      * Finds if a given point is in the dead zone.
-     * Expensive operation as compared to getDeadZone.
-     * Writes result to cache.
+     * @param index The row-major index (x + y * width) of the world grid point to check. Negative if off the map.
+     * @return Whether the tile is in the dead zone
+     */
+    public static boolean getDeadZoneIndex(int index) {
+        if (deadZoneCache == null || index < 0 || index >= width * height) return true;
+        return isDead(index);
+    }
+
+    /**
+     * Finds if a given point is in the dead zone.
+     * Also rewrites the tile's floor if it does not match the cache yet.
      * @param tile The world grid tile to check
      * @return Whether the tile is in the dead zone
      */
     public static boolean hardGetDeadZone(Point2 tile) {
-        if (world.tile(tile.x, tile.y).floor() == Blocks.grass.asFloor()) {
-            return false;
+        return hardGetDeadZone(tile.x, tile.y);
+    }
+
+    /**
+     * Finds if a given point is in the dead zone.
+     * Also rewrites the tile's floor if it does not match the cache yet.
+     * @param x The x position of the world grid point to check
+     * @param y The y position of the world grid point to check
+     * @return Whether the tile is in the dead zone
+     */
+    public static boolean hardGetDeadZone(int x, int y) {
+        boolean result = getDeadZone(x, y);
+        if (deadZoneCache != null && x >= 0 && y >= 0 && x < width && y < height) {
+            writeFloor(index(x, y));
         }
+        return result;
+    }
 
-        CoreBlock.CoreBuild[] cores = Gamedata.getAllCores();
+    // Sets the tile's world floor to match the cache, if it doesn't already. Clients are sent the change on the next update.
+    private static void writeFloor(int index) {
+        int x = index % width;
+        int y = index / width;
+        Block desiredFloor;
+        Block desiredOverlay;
+        if (isDead(index)) {
+            desiredFloor = Constants.DEAD_ZONE_FILLER_FLOOR;
+            desiredOverlay = Blocks.air;
+        } else {
+            desiredFloor = content.block(actualFloor[index]);
+            desiredOverlay = content.block(actualOverlay[index]);
+        }
+        Tile tile = world.tile(x, y);
+        if (tile.floor() != desiredFloor) {
+            if ((pendingSyncMask[index >>> 6] & (1L << index)) == 0) {
+                pendingSyncMask[index >>> 6] |= 1L << index;
+                pendingSyncTiles.addLast(index);
+                pendingSyncPrevious.addLast(packFloor(tile.floor(), tile.overlay()));
+            }
+            tile.setFloor(desiredFloor.asFloor());
+            tile.setOverlay(desiredOverlay);
+        }
+    }
 
-        boolean result = true;
-        for (CoreBlock.CoreBuild core : cores) {
-            float coreX = core.tileX();
-            float coreY = core.tileY();
-            if (core.block.size % 2 == 0) {
-                coreX += 0.5f;
-                coreY += 0.5f;
+    /**
+     * Rewrites the entire map floor. Doesn't find new values, only reloads from memory.
+     */
+    public static void reloadFloor() {
+        // Starts the reloading process
+        for (int chunkY = 0; chunkY < chunksY; chunkY++) {
+            for (int chunkX = 0; chunkX < chunksX; chunkX++) {
+                markDirty(chunkX * CHUNK_SIZE, chunkY * CHUNK_SIZE);
             }
-            if ((Mathf.dst2(tile.x, tile.y, coreX, coreY)) < getCoreSafetyRadius2(core.block)) {
-                result = false;
-                break;
+        }
+    }
+
+    /**
+     * Clears the dead zone around a core. Replaces whichever core was previously counted at the same position.
+     * @param core The core which now exists
+     */
+    public static void addCore(CoreBlock.CoreBuild core) {
+        // Every existing core is added once the game begins
+        if (coverage == null) return;
+        int position = core.tile.pos();
+        CoreBlock.CoreBuild previous = coveringCores.get(position);
+        if (previous == core) return;
+        if (previous != null) {
+            cover(previous, -1);
+        }
+        // Upgrading a core in place swaps its build without any destroy event, and the upgrade may not share its tile
+        int offset = core.block.sizeOffset;
+        for (int dy = 0; dy < core.block.size; dy++) {
+            for (int dx = 0; dx < core.block.size; dx++) {
+                int covered = Point2.pack(core.tileX() + offset + dx, core.tileY() + offset + dy);
+                CoreBlock.CoreBuild replaced = coveringCores.get(covered);
+                if (covered != position && replaced != null && CoreRegistry.isReplaced(replaced)) {
+                    coveringCores.remove(covered);
+                    cover(replaced, -1);
+                }
             }
         }
+        coveringCores.put(position, core);
+        cover(core, 1);
+    }
 
-        updateDeadZone(tile, result);
-        return result;
+    /**
+     * Restores the dead zone around a core, unless another core still covers it.
+     * If the core counted at its position has since had its build replaced, as by an in-place upgrade, that core is removed instead.
+     * @param core The core which no longer exists
+     */
+    public static void removeCore(Building core) {
+        if (coverage == null) return;
+        int position = core.tile.pos();
+        CoreBlock.CoreBuild counted = coveringCores.get(position);
+        // A different core may have been built in its place since
+        if (counted == null || (counted != core && !CoreRegistry.isReplaced(counted))) return;
+        coveringCores.remove(position);
+        cover(counted, -1);
     }
 
-    private static void updateDeadZone(Point2 tile, boolean deadZone) {
-        deadZoneCache[tile.x][tile.y] = deadZone;
-        if (deadZone) {
-            world.tile(tile.x, tile.y).setFloorNet(Constants.DEAD_ZONE_FILLER_FLOOR);
+    /**
+     * Recomputes the coverage of every tile from scratch, counting exactly the given cores.
+     * With Constants.ASYNC_DEAD_ZONE_REBUILD, the work is done on a worker pool and only the resulting changes are applied during a later update.
+     * Until then, the dead zone is read as it was before the rebuild, plus any cores added or removed since.
+     * The first rebuild after initCache always finishes before returning, since until then every tile reads as dead zone, even beside cores.
+     * @param cores Every core that should be counted
+     */
+    public static void rebuild(Seq<CoreBlock.CoreBuild> cores) {
+        if (coverage == null) return;
+
+        coveringCores.clear();
+        for (CoreBlock.CoreBuild core : cores) {
+            coveringCores.put(core.tile.pos(), core);
+        }
+        Seq<CoreBlock.CoreBuild> counted = new Seq<>(CoreBlock.CoreBuild.class);
+        for (CoreBlock.CoreBuild core : coveringCores.values()) {
+            counted.add(core);
+        }
+        rebuildLogCores.clear();
+        rebuildLogDeltas.clear();
+        rebuild = new Rebuild(counted.toArray());
+
+        boolean async = Constants.ASYNC_DEAD_ZONE_REBUILD && rebuiltSinceInit;
+        rebuiltSinceInit = true;
+        if (async) {
+            rebuildPool.execute(rebuild.task);
         } else {
-            world.tile(tile.x, tile.y).setFloorNet(actualFloor[tile.x][tile.y], actualOverlay[tile.x][tile.y]);
+            rebuildPool.invoke(rebuild.task);
+            applyRebuild();
+        }
+    }
+
+    // Swaps in a finished rebuild, replays the changes made while it ran, and queues every chunk whose dead zone changed
+    private static void applyRebuild() {
+        Rebuild finished = rebuild;
+        rebuild = null;
+        if (finished.task.isCompletedAbnormally()) {
+            finished.task.getException().printStackTrace();
+            // The failed attempt may have counted some cores already, so start again from fresh arrays.
+            // Waits for the pool to finish, letting a second failure propagate.
+            finished = finished.retry();
+            rebuildPool.invoke(finished.task);
+        }
+
+        long[] previous = deadZoneCache;
+        coverage = finished.coverage;
+        deadZoneCache = finished.deadZone;
+        version++;
+        for (int n = 0; n < rebuildLogCores.size; n++) {
+            cover(rebuildLogCores.get(n), rebuildLogDeltas.get(n));
+        }
+        rebuildLogCores.clear();
+        rebuildLogDeltas.clear();
+
+        int tileCount = width * height;
+        for (int word = 0; word < previous.length; word++) {
+            long changed = previous[word] ^ deadZoneCache[word];
+            while (changed != 0) {
+                int i = (word << 6) + Long.numberOfTrailingZeros(changed);
+                changed &= changed - 1;
+                if (i < tileCount) {
+                    markDirty(i % width, i / width);
+                }
+            }
+        }
+    }
+
+    // Adds delta to the coverage of every tile inside the core's safety radius
+    private static void cover(CoreBlock.CoreBuild core, int delta) {
+        DiskStencil stencil = stencils.get(core.block);
+        if (stencil == null) {
+            throw new IllegalArgumentException("Unknown core type: " + core.block.toString());
+        }
+        if (rebuild != null) {
+            rebuildLogCores.add(core);
+            rebuildLogDeltas.add(delta);
+        }
+
+        int coreX = core.tileX();
+        int coreY = core.tileY();
+        boolean changed = false;
+        for (int row = 0; row < stencil.minX.length; row++) {
+            int y = coreY + stencil.minY + row;
+            if (y < 0 || y >= height) continue;
+            int minX = Math.max(0, coreX + stencil.minX[row]);
+            int maxX = Math.min(width - 1, coreX + stencil.maxX[row]);
+            for (int x = minX; x <= maxX; x++) {
+                int i = index(x, y);
+                int count = coverage[i] + delta;
+                coverage[i] = (short) count;
+                // Only the first core covering a tile and the last one leaving it change anything
+                if (isGrass(i) || (count != 0 && (count != 1 || delta < 0))) continue;
+                setDead(i, count == 0);
+                markDirty(x, y);
+                changed = true;
+            }
+        }
+        if (changed) {
+            version++;
         }
     }
 
     /**
-     * Rewrites the entire map floor. Doesn't find new values, only reloads from memory.
+     * A snapshot of core positions, and the coverage and dead zone computed from it off the main thread.
      */
-    public static void reloadFloor() {
-        // Starts the reloading process
-        updateIndex = 0;
-        updatingDeadZone = true;
+    private static final class Rebuild {
+        // Rows handled by a single worker task
+        static final int BAND_ROWS = 32;
+        // Dead zone words handled by a single worker task
+        static final int BAND_WORDS = 1024;
+
+        // Copied so that workers never read state the main thread may replace
+        final int width = DeadZone.width;
+        final int height = DeadZone.height;
+        final short[] floor = actualFloor;
+        final short grass = Blocks.grass.id;
+        final int[] coreX;
+        final int[] coreY;
+        final DiskStencil[] coreStencils;
+        final short[] coverage;
+        final long[] deadZone;
+        final ForkJoinTask<?> task;
+
+        Rebuild(CoreBlock.CoreBuild[] cores) {
+            this(new int[cores.length], new int[cores.length], new DiskStencil[cores.length]);
+            for (int i = 0; i < cores.length; i++) {
+                coreX[i] = cores[i].tileX();
+                coreY[i] = cores[i].tileY();
+                coreStencils[i] = stencils.get(cores[i].block);
+                if (coreStencils[i] == null) {
+                    throw new IllegalArgumentException("Unknown core type: " + cores[i].block.toString());
+                }
+            }
+        }
+
+        private Rebuild(int[] coreX, int[] coreY, DiskStencil[] coreStencils) {
+            this.coreX = coreX;
+            this.coreY = coreY;
+            this.coreStencils = coreStencils;
+            coverage = new short[width * height];
+            deadZone = new long[deadZoneCache.length];
+            task = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    new CoverageBand(0, height).invoke();
+                    new DeadZoneBand(0, deadZone.length).invoke();
+                }
+            };
+        }
+
+        // A fresh attempt at the same snapshot of cores, since a failed attempt leaves its coverage partly counted
+        Rebuild retry() {
+            return new Rebuild(coreX, coreY, coreStencils);
+        }
+
+        // Counts the cores covering each tile in a band of rows
+        private final class CoverageBand extends RecursiveAction {
+            final int minY;
+            final int maxY;
+
+            CoverageBand(int minY, int maxY) {
+                this.minY = minY;
+                this.maxY = maxY;
+            }
+
+            @Override
+            protected void compute() {
+                if (maxY - minY > BAND_ROWS) {
+                    int middle = (minY + maxY) >>> 1;
+                    invokeAll(new CoverageBand(minY, middle), new CoverageBand(middle, maxY));
+                    return;
+                }
+
+                for (int core = 0; core < coreStencils.length; core++) {
+                    DiskStencil stencil = coreStencils[core];
+                    int firstY = Math.max(minY, coreY[core] + stencil.minY);
+                    int lastY = Math.min(maxY, coreY[core] + stencil.minY + stencil.minX.length);
+                    for (int y = firstY; y < lastY; y++) {
+                        int row = y - coreY[core] - stencil.minY;
+                        int lowX = Math.max(0, coreX[core] + stencil.minX[row]);
+                        int highX = Math.min(width - 1, coreX[core] + stencil.maxX[row]);
+                        for (int x = lowX; x <= highX; x++) {
+                            coverage[x + y * width] ++;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Derives the dead zone bits for a range of words from the counted coverage
+        private final class DeadZoneBand extends RecursiveAction {
+            final int minWord;
+            final int maxWord;
+
+            DeadZoneBand(int minWord, int maxWord) {
+                this.minWord = minWord;
+                this.maxWord = maxWord;
+            }
+
+            @Override
+            protected void compute() {
+                if (maxWord - minWord > BAND_WORDS) {
+                    int middle = (minWord + maxWord) >>> 1;
+                    invokeAll(new DeadZoneBand(minWord, middle), new DeadZoneBand(middle, maxWord));
+                    return;
+                }
+
+                int tileCount = coverage.length;
+                for (int word = minWord; word < maxWord; word++) {
+                    long bits = 0L;
+                    int first = word << 6;
+                    int last = Math.min(tileCount, first + 64);
+                    for (int i = first; i < last; i++) {
+                        if (coverage[i] == 0 && floor[i] != grass) {
+                            bits |= 1L << i;
+                        }
+                    }
+                    deadZone[word] = bits;
+                }
+            }
+        }
     }
 
-    public static void reloadCore(CoreBlock.CoreBuild core) {
-        // Reload deadzone cache around core
-        float radius = getCoreSafetyRadius(core.block);
+    /**
+     * The tiles a core clears of the dead zone, as one horizontal span per row, relative to the core's tile position.
+     */
+    private static final class DiskStencil {
+        // Offset of the first row
+        final int minY;
+        // Inclusive span of each row. Rows are never empty.
+        final int[] minX;
+        final int[] maxX;
+
+        DiskStencil(Block core) {
+            float radius = getCoreSafetyRadius(core);
+            float radius2 = radius * radius;
+            // Even sized cores are centered between tiles
+            float center = core.size % 2 == 0 ? 0.5f : 0f;
+            int extent = Mathf.ceil(radius) + 1;
 
-        int minX = Math.max(0, Mathf.floor(core.tileX() - radius - 1));
-        int minY = Math.max(0, Mathf.floor(core.tileY() - radius - 1));
-        int maxX = Math.min(world.width() - 1, Mathf.ceil(core.tileX() + radius + 1));
-        int maxY = Math.min(world.width() - 1, Mathf.ceil(core.tileY() + radius + 1));
-        for (int x = minX; x < maxX; x ++) {
-            for (int y = minY; y < maxY; y++) {
-                hardGetDeadZone(new Point2(x, y));
+            IntSeq rowMinX = new IntSeq();
+            IntSeq rowMaxX = new IntSeq();
+            int firstRow = Integer.MIN_VALUE;
+            for (int y = -extent; y <= extent; y++) {
+                int low = Integer.MAX_VALUE;
+                int high = Integer.MIN_VALUE;
+                for (int x = -extent; x <= extent; x++) {
+                    if (Mathf.dst2(x, y, center, center) < radius2) {
+                        low = Math.min(low, x);
+                        high = Math.max(high, x);
+                    }
+                }
+                if (low > high) continue;
+                if (firstRow == Integer.MIN_VALUE) firstRow = y;
+                rowMinX.add(low);
+                rowMaxX.add(high);
             }
+
+            minY = firstRow;
+            minX = rowMinX.toArray();
+            maxX = rowMaxX.toArray();
         }
     }
 
@@ -197,27 +722,14 @@ public final class DeadZone {
      * @return Whether the building would be in the dead zone
      */
     public static boolean insideDeadZone(int buildingX, int buildingY, Block block, boolean hard) {
-        float middleX = buildingX;
-        float middleY = buildingY;
-        if (block.size % 2 == 0) {
-            middleX += 0.5f;
-            middleY += 0.5f;
-        }
-        float diff = (block.size - 1) / 2f;
-        int lowX = (int)(middleX - diff);
-        int lowY = (int)(middleY - diff);
-        int highX = (int)(middleX + diff);
-        int highY = (int)(middleY + diff);
+        int lowX = buildingX + block.sizeOffset;
+        int lowY = buildingY + block.sizeOffset;
+        int highX = lowX + block.size - 1;
+        int highY = lowY + block.size - 1;
         for (int x = lowX; x <= highX; x ++) {
             for (int y = lowY; y <= highY; y ++) {
-                if (hard) {
-                    if (hardGetDeadZone(new Point2(x, y))) {
-                        return true;
-                    }
-                } else {
-                    if (getDeadZone(new Point2(x, y))) {
-                        return true;
-                    }
+                if (hard ? hardGetDeadZone(x, y) : getDeadZone(x, y)) {
+                    return true;
                 }
             }
         }
@@ -1,6 +1,5 @@
 package siege;
 
-import mindustry.game.Team;
 import mindustry.world.Block;
 import mindustry.world.blocks.storage.CoreBlock;
 
@@ -17,6 +16,7 @@ public final class Gamedata {
 
     public static void reset() {
         startTime = System.currentTimeMillis() + 1000 * Constants.SETUP_TIME_SECONDS;
+        RaiderTeam.unregisterAll();
         raiderTeams = new ArrayList<>();
         deadRaiderTeams = new ArrayList<>();
         gameOver = false;
@@ -26,6 +26,14 @@ public final class Gamedata {
      * @return Current phase of the game
      */
     public static GameState getGameState() {
+        return getGameState(Keep.keepExists());
+    }
+
+    /**
+     * @param keepExists Whether the keep currently exists
+     * @return Current phase of the game
+     */
+    public static GameState getGameState(boolean keepExists) {
         if (!gameStarted) {
             if (Setup.changedToCorePlacement) {
                 return GameState.CorePlacement;
@@ -33,7 +41,7 @@ public final class Gamedata {
                 return GameState.TeamSetup;
             }
         } else if (!gameOver) {
-            if (Keep.keepExists()) {
+            if (keepExists) {
                 return GameState.MidgameYesKeep;
             } else {
                 return GameState.MidgameNoKeep;
@@ -61,20 +69,22 @@ public final class Gamedata {
      * @return The number of seconds since the game's start time (end of setup). Will be negative if setup is still ongoing.
      */
     public static long elapsedTimeSeconds() {
-        return (System.currentTimeMillis() - startTime) / 1000;
+        return elapsedTimeSeconds(System.currentTimeMillis());
+    }
+
+    /**
+     * @param now The system time in milliseconds to measure up to
+     * @return The number of seconds from the game's start time (end of setup) to the given time. Will be negative if that is before setup ends.
+     */
+    public static long elapsedTimeSeconds(long now) {
+        return (now - startTime) / 1000;
     }
 
     /**
      * @return All the player cores in the game
      */
     public static CoreBlock.CoreBuild[] getAllCores() {
-        ArrayList<CoreBlock.CoreBuild> cores = Team.green.cores().list();
-
-        for (RaiderTeam team : raiderTeams) {
-            cores.addAll(List.of(team.getCores()));
-        }
-
-        return cores.toArray(new CoreBlock.CoreBuild[0]);
+        return CoreRegistry.all().toArray(CoreBlock.CoreBuild.class);
     }
 
     /**
@@ -103,6 +113,7 @@ public final class Gamedata {
         SiegePlugin.announce("gameOver: " + gameOver);
         SiegePlugin.announce("keep exists: " + Keep.keepExists());
         SiegePlugin.announce("elapsedTimeSeconds(): " + elapsedTimeSeconds());
+        SiegePlugin.announce("dead zone backlog: " + DeadZone.getBacklog() + " chunks, ~" + DeadZone.getTicksToConverge() + " ticks");
         SiegePlugin.announce("--- Setup ---");
         Setup.dataDump();
         SiegePlugin.announce("\n");
@@ -1,33 +1,199 @@
 package siege;
 
-import arc.math.Mathf;
+import arc.graphics.Color;
 import arc.math.geom.Point2;
+import arc.struct.FloatSeq;
+import arc.struct.IntMap;
 import mindustry.Vars;
+import mindustry.entities.Effect;
 import mindustry.game.Team;
 import mindustry.gen.Building;
+import mindustry.gen.Call;
 import mindustry.gen.Groups;
+import mindustry.gen.Player;
+import mindustry.net.NetConnection;
 import mindustry.world.Block;
 import mindustry.world.Tile;
 
+import static mindustry.Vars.tilesize;
 import static mindustry.Vars.world;
 
 public class Keep {
     public static boolean keepExisted = false;
 
+    // Leftmost and rightmost x positions inside the keep for each row of the world. Rows which miss the keep have a minimum greater than their maximum.
+    private static int[] rowMinX;
+    private static int[] rowMaxX;
+
+    // Points along the keep's border where its effect is shown, in world units. Consecutive points are grouped into segments.
+    private static final int BORDER_SEGMENT_POINTS = 16;
+    private static float[] borderX;
+    private static float[] borderY;
+    private static float[] segmentMinX;
+    private static float[] segmentMinY;
+    private static float[] segmentMaxX;
+    private static float[] segmentMaxY;
+
+    // Citadel buildings inside the keep, keyed by the packed position of their tile
+    private static final IntMap<Building> keepBuildings = new IntMap<>();
+
+    /**
+     * Rasterizes the keep for the current world. Should be called once the world has loaded.
+     */
+    public static void init() {
+        int height = Vars.world.height();
+        float worldMiddleX = (Vars.world.width()-1) / 2f;
+        float worldMiddleY = (Vars.world.height()-1) / 2f;
+        rowMinX = new int[height];
+        rowMaxX = new int[height];
+        for (int y = 0; y < height; y++) {
+            // Horizontal distance from the middle still allowed after the vertical distance is spent
+            float reach = Constants.KEEP_RADIUS - Math.abs(worldMiddleY - y);
+            if (reach < 0) {
+                rowMinX[y] = 0;
+                rowMaxX[y] = -1;
+                continue;
+            }
+            rowMinX[y] = (int) Math.ceil(worldMiddleX - reach);
+            rowMaxX[y] = (int) Math.floor(worldMiddleX + reach);
+        }
+
+        initBorder(worldMiddleX, worldMiddleY);
+
+        keepBuildings.clear();
+        for (int y = 0; y < height; y++) {
+            for (int x = rowMinX[y]; x <= rowMaxX[y]; x++) {
+                Tile tile = world.tile(x, y);
+                if (tile != null && tile.build != null && tile.build.tile == tile) {
+                    addBuilding(tile.build);
+                }
+            }
+        }
+    }
+
+    // Puts border points where the manhattan distance from center is equal to or the largest less than the keep radius
+    private static void initBorder(float worldMiddleX, float worldMiddleY) {
+        float widthX = Constants.KEEP_RADIUS;
+        if (Math.floor(worldMiddleX) != worldMiddleX) {
+            widthX -= 0.5f;
+        }
+        FloatSeq xs = new FloatSeq();
+        FloatSeq ys = new FloatSeq();
+        // Upper edges first, then lower edges, so that each segment covers a short stretch of the border
+        for (int side = 1; side >= -1; side -= 2) {
+            for (float diffX = -widthX; diffX <= widthX; diffX += 1f) {
+                float diffY = Constants.KEEP_RADIUS - Math.abs(diffX);
+                if (side < 0 && diffY == 0) continue; // Already placed with the upper edges
+                xs.add((worldMiddleX + diffX) * tilesize);
+                ys.add((worldMiddleY + side * diffY) * tilesize);
+            }
+        }
+        borderX = xs.toArray();
+        borderY = ys.toArray();
+
+        int segments = (borderX.length + BORDER_SEGMENT_POINTS - 1) / BORDER_SEGMENT_POINTS;
+        segmentMinX = new float[segments];
+        segmentMinY = new float[segments];
+        segmentMaxX = new float[segments];
+        segmentMaxY = new float[segments];
+        for (int segment = 0; segment < segments; segment++) {
+            segmentMinX[segment] = segmentMinY[segment] = Float.MAX_VALUE;
+            segmentMaxX[segment] = segmentMaxY[segment] = -Float.MAX_VALUE;
+            int end = Math.min(borderX.length, (segment + 1) * BORDER_SEGMENT_POINTS);
+            for (int i = segment * BORDER_SEGMENT_POINTS; i < end; i++) {
+                segmentMinX[segment] = Math.min(segmentMinX[segment], borderX[i]);
+                segmentMinY[segment] = Math.min(segmentMinY[segment], borderY[i]);
+                segmentMaxX[segment] = Math.max(segmentMaxX[segment], borderX[i]);
+                segmentMaxY[segment] = Math.max(segmentMaxY[segment], borderY[i]);
+            }
+        }
+    }
+
+    /**
+     * Shows an effect along the keep's border, only to players whose view contains that part of the border.
+     * @param effect The effect to show
+     * @param color The color of the effect
+     * @return The number of effects sent to players
+     */
+    public static int displayBorder(Effect effect, Color color) {
+        if (borderX == null) return 0;
+        int sent = 0;
+        for (Player player : Groups.player) {
+            NetConnection con = player.con;
+            if (con == null) continue;
+            // Pad the view so that effects just outside it are still seen as they spread
+            float minX = con.viewX - con.viewWidth / 2f - tilesize * 2;
+            float minY = con.viewY - con.viewHeight / 2f - tilesize * 2;
+            float maxX = con.viewX + con.viewWidth / 2f + tilesize * 2;
+            float maxY = con.viewY + con.viewHeight / 2f + tilesize * 2;
+            for (int segment = 0; segment < segmentMinX.length; segment++) {
+                if (segmentMaxX[segment] < minX || segmentMinX[segment] > maxX || segmentMaxY[segment] < minY || segmentMinY[segment] > maxY) continue;
+                int end = Math.min(borderX.length, (segment + 1) * BORDER_SEGMENT_POINTS);
+                for (int i = segment * BORDER_SEGMENT_POINTS; i < end; i++) {
+                    if (borderX[i] < minX || borderX[i] > maxX || borderY[i] < minY || borderY[i] > maxY) continue;
+                    Call.effect(con, effect, borderX[i], borderY[i], 0, color);
+                    sent++;
+                }
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Records a building if it is a Citadel building inside the keep.
+     * @param building The building which now exists. May be null.
+     */
+    public static void addBuilding(Building building) {
+        if (building != null && building.team == Team.green && inKeep(building)) {
+            keepBuildings.put(building.tile.pos(), building);
+        }
+    }
+
+    /**
+     * Forgets a building.
+     * @param building The building which no longer exists
+     */
+    public static void removeBuilding(Building building) {
+        if (building == null) return;
+        int position = building.tile.pos();
+        if (keepBuildings.get(position) == building) {
+            keepBuildings.remove(position);
+        }
+    }
+
+    /**
+     * Updates the record for a tile whose building was replaced or removed.
+     * @param tile The tile that the building is centered on
+     */
+    public static void refreshBuilding(Tile tile) {
+        keepBuildings.remove(tile.pos());
+        if (tile.build != null && tile.build.tile == tile) {
+            addBuilding(tile.build);
+        }
+    }
+
+    /**
+     * Gives every Citadel building inside the keep infinite health.
+     */
+    public static void makeBuildingsInvulnerable() {
+        for (Building building : keepBuildings.values()) {
+            if (building.isValid() && building.team == Team.green) {
+                building.health = Float.MAX_VALUE;
+            }
+        }
+    }
+
     /**
      * Handles the tasks that have to run when the keep dissolves
      */
     public static void keepDissolvedListener() {
         SiegePlugin.announce("[accent]The keep has dissolved. Central Citadel buildings are now vulnerable, but turrets can be built in its place.");
         // When the keep dissolves, all keep buildings should revert to standard health
-        world.tiles.forEach(tile -> {
-            if (tile.build != null && Keep.inKeep(tile.build) && tile.build.team() == Team.green) {
-                System.out.println(tile);
-                System.out.println(tile.build.health);
-                System.out.println(tile.build.maxHealth);
-                tile.build.health = tile.build.maxHealth;
+        for (Building building : keepBuildings.values()) {
+            if (building.isValid() && building.team == Team.green) {
+                building.health = building.maxHealth;
             }
-        });
+        }
 
         // Fix all citadel units
         Groups.unit.forEach(unit -> {
@@ -41,7 +207,15 @@ public class Keep {
      * @return Whether the keep should exist at this moment
      */
     public static boolean keepExists() {
-        return Gamedata.raiderTeams.size() > 1 || Gamedata.elapsedTimeSeconds() < Constants.GUARANTEED_KEEP_TIME_SECONDS;
+        return keepExists(Gamedata.elapsedTimeSeconds());
+    }
+
+    /**
+     * @param elapsedTimeSeconds Seconds since the game's start time, as returned by Gamedata
+     * @return Whether the keep should exist at that moment
+     */
+    public static boolean keepExists(long elapsedTimeSeconds) {
+        return Gamedata.raiderTeams.size() > 1 || elapsedTimeSeconds < Constants.GUARANTEED_KEEP_TIME_SECONDS;
     }
 
     /**
@@ -50,7 +224,7 @@ public class Keep {
      * @return Whether that location could be in the keep
      */
     public static boolean inKeep(Tile tile) {
-        return inKeep(new Point2(tile.x, tile.y));
+        return inKeep(tile.x, tile.y);
     }
 
     /**
@@ -59,10 +233,18 @@ public class Keep {
      * @return Whether that location could be in the keep
      */
     public static boolean inKeep(Point2 tile) {
-        float worldMiddleX = (Vars.world.width()-1) / 2f;
-        float worldMiddleY = (Vars.world.height()-1) / 2f;
-        float manhattanDist = Math.abs(worldMiddleX - tile.x) + Math.abs(worldMiddleY - tile.y);
-        return manhattanDist <= Constants.KEEP_RADIUS;
+        return inKeep(tile.x, tile.y);
+    }
+
+    /**
+     * Checks if a tile is in the keep. Ignores whether the keep has dissolved or not.
+     * @param x The x position of the location to query
+     * @param y The y position of the location to query
+     * @return Whether that location could be in the keep
+     */
+    public static boolean inKeep(int x, int y) {
+        if (rowMinX == null || y < 0 || y >= rowMinX.length) return false;
+        return x >= rowMinX[y] && x <= rowMaxX[y];
     }
 
     /**
@@ -73,23 +255,18 @@ public class Keep {
      * @return Whether that building would be in the keep
      */
     public static boolean inKeep(int x, int y, Block block) {
-        float middleX = x;
-        float middleY = y;
-        if (block.size % 2 == 0) {
-            middleX += 0.5f;
-            middleY += 0.5f;
-        }
-        float diff = block.size / 2f - 0.5f;
-        float[] offsets = new float[] { -diff, diff };
-        boolean inside = true;
-        for (float xOffset : offsets) {
-            for (float yOffset : offsets) {
-                if (!inKeep(new Point2(Mathf.round(middleX + xOffset), Mathf.round(middleY + yOffset)))) {
-                    inside = false;
-                }
-            }
-        }
-        return inside;
+        int lowX = x + block.sizeOffset;
+        int lowY = y + block.sizeOffset;
+        int highX = lowX + block.size - 1;
+        int highY = lowY + block.size - 1;
+        // The keep is convex, so the building is inside if its top and bottom rows are
+        return spans(lowY, lowX, highX) && spans(highY, lowX, highX);
+    }
+
+    // Whether a row of the keep contains every position from minX to maxX
+    private static boolean spans(int y, int minX, int maxX) {
+        if (rowMinX == null || y < 0 || y >= rowMinX.length) return false;
+        return minX >= rowMinX[y] && maxX <= rowMaxX[y];
     }
 
     /**
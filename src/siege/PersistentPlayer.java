@@ -1,13 +1,23 @@
 package siege;
 
+import arc.files.Fi;
+import arc.struct.IntMap;
+import arc.struct.ObjectMap;
+import arc.struct.ObjectSet;
 import arc.struct.Seq;
+import arc.util.ArcRuntimeException;
+import mindustry.Vars;
 import mindustry.game.Team;
 import mindustry.gen.Player;
 import mindustry.world.blocks.storage.CoreBlock;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PersistentPlayer {
     public ClickAction clickAction = ClickAction.None;
@@ -16,7 +26,28 @@ public class PersistentPlayer {
     public long lastActed;
     public long lastAttemptedCore;
     public Player currentPlayer;
+    // The registered raider team this player is in, maintained by RaiderTeam
+    public RaiderTeam raiderTeam;
+    public final String uuid;
     public static Seq<PersistentPlayer> players = new Seq<>();
+    private static final ObjectMap<String, PersistentPlayer> playersByUuid = new ObjectMap<>();
+    // Keyed by the entity id of each PersistentPlayer's current player
+    private static final IntMap<PersistentPlayer> playersById = new IntMap<>();
+    // Keyed by the lower case plain name of each PersistentPlayer's current player
+    private static final ObjectMap<String, Seq<PersistentPlayer>> playersByName = new ObjectMap<>();
+
+    // Evicted players are kept here as plain records, keyed by uuid, and the whole store is saved to a single file between games
+    private static final ObjectMap<String, StoredPlayer> stored = new ObjectMap<>();
+    private static final byte STORE_VERSION = 1;
+    // Saves run on their own thread, one at a time, so that the game thread never waits on the disk
+    private static final ExecutorService storeWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Siege player store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static Fi storeFile() {
+        return Vars.dataDirectory.child("siege").child("players.bin");
+    }
 
     /**
      * Returns a player's PersistentPlayer if one has already been made, otherwise creates a new instance for the given player.
@@ -24,28 +55,225 @@ public class PersistentPlayer {
      * @return The target player's respective PersistentPlayer
      */
     public static PersistentPlayer fromPlayer(Player targetPlayer) {
-        for (PersistentPlayer persistentPlayer : players) {
-            if (persistentPlayer.currentPlayer.uuid().equals(targetPlayer.uuid())) {
+        PersistentPlayer persistentPlayer = playersByUuid.get(targetPlayer.uuid());
+        if (persistentPlayer != null) {
+            if (persistentPlayer.currentPlayer != targetPlayer) {
+                persistentPlayer.unindex();
                 persistentPlayer.currentPlayer = targetPlayer;
-                return persistentPlayer;
+                persistentPlayer.index();
+            }
+            return persistentPlayer;
+        }
+
+        persistentPlayer = new PersistentPlayer(targetPlayer);
+        persistentPlayer.restore();
+        if (players.size > Constants.PERSISTENT_PLAYER_CAP) {
+            // Evict down to three quarters of the cap, so that eviction does not run again for every new player
+            evictLeastRecentlySeen(players.size - Constants.PERSISTENT_PLAYER_CAP * 3 / 4);
+        }
+        return persistentPlayer;
+    }
+
+    /**
+     * Moves every offline player who is not part of a raider team to the store. Should be called between games, before saveStore.
+     */
+    public static void evictOffline() {
+        ObjectSet<PersistentPlayer> referenced = referencedPlayers();
+        for (int i = players.size - 1; i >= 0; i--) {
+            PersistentPlayer persistentPlayer = players.get(i);
+            if (!persistentPlayer.online && !referenced.contains(persistentPlayer)) {
+                persistentPlayer.evict();
+            }
+        }
+    }
+
+    // Moves up to count offline players who are not part of a raider team to the store, least recently seen first
+    private static void evictLeastRecentlySeen(int count) {
+        ObjectSet<PersistentPlayer> referenced = referencedPlayers();
+        Seq<PersistentPlayer> candidates = players.select(persistentPlayer -> !persistentPlayer.online && !referenced.contains(persistentPlayer));
+        candidates.sort((a, b) -> Long.compare(a.lastSeen, b.lastSeen));
+        for (int i = 0; i < count && i < candidates.size; i++) {
+            candidates.get(i).evict();
+        }
+    }
+
+    // All players that some raider team still refers to
+    private static ObjectSet<PersistentPlayer> referencedPlayers() {
+        ObjectSet<PersistentPlayer> referenced = new ObjectSet<>();
+        for (RaiderTeam team : Gamedata.raiderTeams) {
+            referenced.addAll(team.players);
+            referenced.addAll(team.joinRequests);
+            referenced.addAll(team.invitations);
+            referenced.addAll(team.yesVoters);
+            referenced.addAll(team.noVoters);
+            referenced.addAll(team.abstainVoters);
+            if (team.votekickTarget != null) {
+                referenced.add(team.votekickTarget);
+            }
+        }
+        return referenced;
+    }
+
+    // Forgets this player, keeping what should outlive the eviction in the store
+    private void evict() {
+        players.remove(this, true);
+        playersByUuid.remove(uuid);
+        unindex();
+        stored.put(uuid, new StoredPlayer(lastSeen, lastActed, lastAttemptedCore));
+    }
+
+    // Restores what was kept when this player was last evicted, if anything
+    private void restore() {
+        StoredPlayer storedPlayer = stored.remove(uuid);
+        if (storedPlayer == null) return;
+        lastSeen = storedPlayer.lastSeen;
+        lastActed = storedPlayer.lastActed;
+        lastAttemptedCore = storedPlayer.lastAttemptedCore;
+    }
+
+    /**
+     * Reads the store saved by the previous run of the server. Should be called once, before any player joins.
+     */
+    public static void loadStore() {
+        Fi file = storeFile();
+        if (!file.exists()) return;
+        try (DataInputStream stream = new DataInputStream(file.read(8192))) {
+            if (stream.readByte() != STORE_VERSION) return;
+            int count = stream.readInt();
+            for (int i = 0; i < count; i++) {
+                String uuid = stream.readUTF();
+                stored.put(uuid, new StoredPlayer(stream.readLong(), stream.readLong(), stream.readLong()));
+            }
+        } catch (IOException | ArcRuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Saves every player, in memory or evicted, to the store on a background thread.
+     * Evicted players who have not been seen for Constants.PERSISTENT_PLAYER_EXPIRY are forgotten, and the oldest are dropped past Constants.PERSISTENT_PLAYER_STORE_CAP.
+     * Should be called between games.
+     */
+    public static void saveStore() {
+        long expiry = System.currentTimeMillis() - Constants.PERSISTENT_PLAYER_EXPIRY;
+        for (ObjectMap.Entries<String, StoredPlayer> entries = stored.entries(); entries.hasNext(); ) {
+            if (entries.next().value.lastSeen < expiry) {
+                entries.remove();
+            }
+        }
+        if (stored.size > Constants.PERSISTENT_PLAYER_STORE_CAP) {
+            Seq<String> uuids = stored.keys().toSeq();
+            uuids.sort((a, b) -> Long.compare(stored.get(a).lastSeen, stored.get(b).lastSeen));
+            for (int i = 0; i < uuids.size - Constants.PERSISTENT_PLAYER_STORE_CAP; i++) {
+                stored.remove(uuids.get(i));
             }
-//            if (persistentPlayer.currentPlayer.ip().equals(targetPlayer.ip())) {
-//                persistentPlayer.currentPlayer = targetPlayer;
-//                return persistentPlayer;
-//            }
         }
 
-        return new PersistentPlayer(targetPlayer);
+        // Copied on the game thread, so that the writer never reads state the game is changing
+        int count = stored.size + players.size;
+        String[] uuids = new String[count];
+        long[] times = new long[count * 3];
+        int i = 0;
+        for (ObjectMap.Entry<String, StoredPlayer> entry : stored) {
+            uuids[i] = entry.key;
+            times[i * 3] = entry.value.lastSeen;
+            times[i * 3 + 1] = entry.value.lastActed;
+            times[i * 3 + 2] = entry.value.lastAttemptedCore;
+            i++;
+        }
+        for (PersistentPlayer persistentPlayer : players) {
+            uuids[i] = persistentPlayer.uuid;
+            times[i * 3] = persistentPlayer.lastSeen;
+            times[i * 3 + 1] = persistentPlayer.lastActed;
+            times[i * 3 + 2] = persistentPlayer.lastAttemptedCore;
+            i++;
+        }
+
+        storeWriter.execute(() -> {
+            Fi file = storeFile();
+            // Written beside the store and then moved over it, so that a crash mid-write leaves the previous store intact
+            Fi temporary = file.sibling(file.name() + ".tmp");
+            try (DataOutputStream stream = new DataOutputStream(temporary.write(false, 8192))) {
+                stream.writeByte(STORE_VERSION);
+                stream.writeInt(count);
+                for (int j = 0; j < count; j++) {
+                    stream.writeUTF(uuids[j]);
+                    stream.writeLong(times[j * 3]);
+                    stream.writeLong(times[j * 3 + 1]);
+                    stream.writeLong(times[j * 3 + 2]);
+                }
+            } catch (IOException | ArcRuntimeException e) {
+                e.printStackTrace();
+                return;
+            }
+            try {
+                Files.move(temporary.file().toPath(), file.file().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // What is kept of an evicted player
+    private static final class StoredPlayer {
+        final long lastSeen;
+        final long lastActed;
+        final long lastAttemptedCore;
+
+        StoredPlayer(long lastSeen, long lastActed, long lastAttemptedCore) {
+            this.lastSeen = lastSeen;
+            this.lastActed = lastActed;
+            this.lastAttemptedCore = lastAttemptedCore;
+        }
     }
 
     // Private constructor, because fromPlayer should be used instead.
     private PersistentPlayer(Player p) {
         currentPlayer = p;
+        uuid = p.uuid();
         online = true;
         lastActed = System.currentTimeMillis();
         lastSeen = System.currentTimeMillis();
         lastAttemptedCore = 0;
         players.add(this);
+        playersByUuid.put(uuid, this);
+        index();
+    }
+
+    // Adds the current player's id and name to the lookup tables
+    private void index() {
+        playersById.put(currentPlayer.id, this);
+        playersByName.get(normalizeName(currentPlayer.plainName()), Seq::new).add(this);
+    }
+
+    // Removes the current player's id and name from the lookup tables
+    private void unindex() {
+        if (playersById.get(currentPlayer.id) == this) {
+            playersById.remove(currentPlayer.id);
+        }
+        String name = normalizeName(currentPlayer.plainName());
+        Seq<PersistentPlayer> named = playersByName.get(name);
+        if (named != null) {
+            named.remove(this, true);
+            if (named.isEmpty()) {
+                playersByName.remove(name);
+            }
+        }
+    }
+
+    private static String normalizeName(String name) {
+        return name.toLowerCase();
+    }
+
+    /**
+     * Marks the player as connected or disconnected, keeping their team's activity up to date.
+     * @param online Whether the player is now connected
+     */
+    public void setOnline(boolean online) {
+        this.online = online;
+        if (raiderTeam != null) {
+            raiderTeam.refreshActivity();
+        }
     }
 
     /**
@@ -77,28 +305,22 @@ public class PersistentPlayer {
 
         // Try to find player by ID, continue if s is invalid ID or if none are found.
         try {
-            for (PersistentPlayer persistentPlayer : players) {
-                if (persistentPlayer.currentPlayer.id == Integer.parseInt(s)) {
-                    return persistentPlayer;
-                }
+            PersistentPlayer persistentPlayer = playersById.get(Integer.parseInt(s));
+            if (persistentPlayer != null) {
+                return persistentPlayer;
             }
         } catch (NumberFormatException ignored) {}
 
         // Try to find player by name, not considering case. Fail if multiple names match, or if no names match.
-        PersistentPlayer output = null;
-        for (PersistentPlayer persistentPlayer : players) {
-            if (Objects.equals(persistentPlayer.currentPlayer.plainName().toLowerCase(), s.toLowerCase())) {
-                if (output != null) {
-                    if (executor != null) {
-                        executor.sendMessage("[red]Multiple players matching given name \"[accent]" + s.toLowerCase() + "[red]\". Consider using the player's ID instead.");
-                    }
-                    return null;
-                }
-                output = persistentPlayer;
+        Seq<PersistentPlayer> named = playersByName.get(normalizeName(s));
+        if (named != null && named.size > 1) {
+            if (executor != null) {
+                executor.sendMessage("[red]Multiple players matching given name \"[accent]" + s.toLowerCase() + "[red]\". Consider using the player's ID instead.");
             }
+            return null;
         }
-        if (output != null) {
-            return output;
+        if (named != null && named.size == 1) {
+            return named.first();
         }
 
         if (executor != null) {
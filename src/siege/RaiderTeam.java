@@ -4,8 +4,8 @@ import arc.math.Mathf;
 import arc.math.geom.Point2;
 import arc.struct.Seq;
 import arc.util.CommandHandler;
-import arc.util.Time;
 import mindustry.game.Team;
+import mindustry.gen.Building;
 import mindustry.gen.Groups;
 import mindustry.gen.Player;
 import mindustry.gen.Unit;
@@ -33,13 +33,30 @@ public class RaiderTeam {
     public Seq<PersistentPlayer> joinRequests;
     public Seq<PersistentPlayer> invitations;
 
-    protected long votekickEnd = Long.MAX_VALUE;
+    protected TimerWheel.Timer votekickTimer = null;
+    // Set by votekickTimer once the votekick's time is up, to be judged on the next update
+    protected boolean votekickDue = false;
     protected PersistentPlayer votekickTarget = null;
     protected boolean votekickOngoing = false;
     protected Seq<PersistentPlayer> yesVoters;
     protected Seq<PersistentPlayer> noVoters;
     protected Seq<PersistentPlayer> abstainVoters;
 
+    // Activity of the team's members, kept up to date by refreshActivity
+    private int onlineMembers = 0;
+    private long lastSeen = 0;
+    private long lastActed = 0;
+    // Time after which the team may have timed out. Never while any member is online.
+    private long timeoutDeadline = Long.MAX_VALUE;
+    private TimerWheel.Timer timeoutTimer = null;
+
+    // Destroyed teams' buildings are killed in this many batches, spread over KILL_SPREAD_MILLIS
+    private static final int KILL_BATCHES = 30;
+    private static final long KILL_SPREAD_MILLIS = 6000;
+
+    // Registered raider teams, indexed by the id of their mindustry team
+    private static final RaiderTeam[] teamsByMindustryTeam = new RaiderTeam[Team.all.length];
+
     public RaiderTeam() {
         id = 0;
         boolean collision = true;
@@ -66,7 +83,140 @@ public class RaiderTeam {
 
     public RaiderTeam(Player initialPlayer) {
         this();
-        players.add(PersistentPlayer.fromPlayer(initialPlayer));
+        addPlayer(PersistentPlayer.fromPlayer(initialPlayer));
+    }
+
+    /**
+     * Adds a player to this team, taking them out of any team they were previously in.
+     * @param player The player joining the team
+     */
+    public void addPlayer(PersistentPlayer player) {
+        if (player.raiderTeam == this) return;
+        RaiderTeam previousTeam = player.raiderTeam;
+        if (previousTeam != null) {
+            previousTeam.players.remove(player, true);
+            previousTeam.refreshActivity();
+        }
+        players.add(player);
+        player.raiderTeam = this;
+        refreshActivity();
+    }
+
+    /**
+     * Removes a player from this team.
+     * @param player The player leaving the team
+     */
+    public void removePlayer(PersistentPlayer player) {
+        players.remove(player, true);
+        if (player.raiderTeam == this) {
+            player.raiderTeam = null;
+        }
+        refreshActivity();
+    }
+
+    /**
+     * Recounts the team's online members and finds their most recent activity. Should be called whenever a member joins or leaves the team, or connects or disconnects.
+     */
+    public void refreshActivity() {
+        onlineMembers = 0;
+        lastSeen = 0;
+        lastActed = 0;
+        for (PersistentPlayer player : players) {
+            if (player.online) {
+                onlineMembers ++;
+            }
+            lastSeen = Math.max(lastSeen, player.lastSeen);
+            lastActed = Math.max(lastActed, player.lastActed);
+        }
+        timeoutDeadline = onlineMembers > 0 ? Long.MAX_VALUE : Math.min(lastSeen + Constants.OFFLINE_TIMEOUT_PERIOD, lastActed + Constants.AFK_TIMEOUT_PERIOD);
+
+        if (timeoutTimer != null) {
+            timeoutTimer.cancel();
+            timeoutTimer = null;
+        }
+        if (timeoutDeadline != Long.MAX_VALUE && Gamedata.raiderTeams.contains(this)) {
+            // Timeouts compare with >, so check just after the deadline
+            timeoutTimer = TimerWheel.scheduleAt(timeoutDeadline + 1, () -> SiegePlugin.checkTeamTimeout(this));
+        }
+    }
+
+    /**
+     * Assigns the mindustry team that this team plays as.
+     * @param team The mindustry team
+     */
+    public void setMindustryTeam(Team team) {
+        if (mindustryTeam != null && teamsByMindustryTeam[mindustryTeam.id] == this) {
+            teamsByMindustryTeam[mindustryTeam.id] = null;
+        }
+        mindustryTeam = team;
+        if (Gamedata.raiderTeams.contains(this)) {
+            teamsByMindustryTeam[team.id] = this;
+        }
+    }
+
+    /**
+     * Adds a team to the game.
+     * @param team The new team
+     */
+    public static void register(RaiderTeam team) {
+        Gamedata.raiderTeams.add(team);
+        for (PersistentPlayer player : team.players) {
+            player.raiderTeam = team;
+        }
+        team.refreshActivity();
+        if (team.mindustryTeam != null) {
+            teamsByMindustryTeam[team.mindustryTeam.id] = team;
+        }
+    }
+
+    /**
+     * Removes a team from the game. Its roster is kept, but its players no longer count as being in a team.
+     * @param team The team being removed
+     */
+    public static void unregister(RaiderTeam team) {
+        Gamedata.raiderTeams.remove(team);
+        for (PersistentPlayer player : team.players) {
+            if (player.raiderTeam == team) {
+                player.raiderTeam = null;
+            }
+        }
+        if (team.mindustryTeam != null && teamsByMindustryTeam[team.mindustryTeam.id] == team) {
+            teamsByMindustryTeam[team.mindustryTeam.id] = null;
+        }
+        if (team.timeoutTimer != null) {
+            team.timeoutTimer.cancel();
+            team.timeoutTimer = null;
+        }
+        team.votekickClear();
+    }
+
+    /**
+     * Removes every team from the game.
+     */
+    public static void unregisterAll() {
+        while (!Gamedata.raiderTeams.isEmpty()) {
+            unregister(Gamedata.raiderTeams.get(Gamedata.raiderTeams.size() - 1));
+        }
+    }
+
+    /**
+     * Checks that the player and mindustry team lookups agree with the registered teams' rosters.
+     * @return Whether the lookups are consistent
+     */
+    public static boolean indexConsistent() {
+        for (RaiderTeam team : Gamedata.raiderTeams) {
+            for (PersistentPlayer player : team.players) {
+                if (player.raiderTeam != team) return false;
+            }
+            if (team.mindustryTeam != null && teamsByMindustryTeam[team.mindustryTeam.id] != team) return false;
+        }
+        for (PersistentPlayer player : PersistentPlayer.players) {
+            if (player.raiderTeam != null && !player.raiderTeam.players.contains(player, true)) return false;
+        }
+        for (RaiderTeam team : teamsByMindustryTeam) {
+            if (team != null && !Gamedata.raiderTeams.contains(team)) return false;
+        }
+        return true;
     }
 
     /**
@@ -83,7 +233,7 @@ public class RaiderTeam {
         int totalPlayers = players.size;
         int nonvoters = totalPlayers - (yeses + nos + abstains);
         // Judge by yeses and nos only if the votekick ends by time
-        if (System.currentTimeMillis() > votekickEnd) {
+        if (votekickDue) {
             if (yeses > nos) {
                 votekickPasses();
             } else {
@@ -104,16 +254,16 @@ public class RaiderTeam {
      * @return The time since the last team member disconnected, in ms. Zero if the team has an online member.
      */
     public long TimeOffline() {
-        long lastSeen = 0;
-        for (PersistentPlayer player : players) {
-            if (player.online) {
-                return 0;
-            }
-            if (player.lastSeen > lastSeen) {
-                lastSeen = player.lastSeen;
-            }
-        }
-        return System.currentTimeMillis() - lastSeen;
+        return TimeOffline(System.currentTimeMillis());
+    }
+
+    /**
+     * Find the time this team has been offline
+     * @param now The current system time in milliseconds
+     * @return The time since the last team member disconnected, in ms. Zero if the team has an online member.
+     */
+    public long TimeOffline(long now) {
+        return onlineMembers > 0 ? 0 : now - lastSeen;
     }
 
     /**
@@ -121,16 +271,16 @@ public class RaiderTeam {
      * @return The time since the last team member made an action, in ms.
      */
     public long TimeAFK() {
-        long lastActed = 0;
-        for (PersistentPlayer player : players) {
-            if (player.online) {
-                return 0;
-            }
-            if (player.lastActed > lastActed) {
-                lastActed = player.lastActed;
-            }
-        }
-        return System.currentTimeMillis() - lastActed;
+        return TimeAFK(System.currentTimeMillis());
+    }
+
+    /**
+     * Find the time this team has been afk
+     * @param now The current system time in milliseconds
+     * @return The time since the last team member made an action, in ms.
+     */
+    public long TimeAFK(long now) {
+        return onlineMembers > 0 ? 0 : now - lastActed;
     }
 
     /**
@@ -154,13 +304,9 @@ public class RaiderTeam {
             return new Utilities.Tuple<>(adjustedCorePosition, false);
         }
 
-        final float coreDistance2 = Mathf.sqr(Constants.CORE_PLACEMENT_MIN_DISTANCE);
-        final float coreCitadelDistance2 = Mathf.sqr(Constants.CORE_PLACEMENT_CITADEL_MIN_DISTANCE);
-        CoreBlock.CoreBuild[] cores = Gamedata.getAllCores();
-
         boolean coreAdjusted = false;
         // If within core no-core radius, leave core no-core radius.
-        for (CoreBlock.CoreBuild core : cores) {
+        for (CoreBlock.CoreBuild core : CoreRegistry.all()) {
             float radius = Constants.CORE_PLACEMENT_MIN_DISTANCE;
             if (core.team() == Team.green) {
                 radius = Constants.CORE_PLACEMENT_CITADEL_MIN_DISTANCE;
@@ -228,13 +374,11 @@ public class RaiderTeam {
                     }
                 }
                 // Check for core vicinity
-                for (CoreBlock.CoreBuild core : cores) {
-                    if (sample.dst2(core.tileX(), core.tileY()) < coreDistance2) {
-                        continue samples; // Cores cannot be placed too close to other cores
-                    }
-                    if (core.team() == Team.green && sample.dst2(core.tileX(), core.tileY()) < coreCitadelDistance2) {
-                        continue samples;// Cores cannot be placed too close to citadel cores
-                    }
+                if (CoreRegistry.anyWithin(sample.x, sample.y, Constants.CORE_PLACEMENT_MIN_DISTANCE, null)) {
+                    continue; // Cores cannot be placed too close to other cores
+                }
+                if (CoreRegistry.anyWithin(sample.x, sample.y, Constants.CORE_PLACEMENT_CITADEL_MIN_DISTANCE, Team.green)) {
+                    continue; // Cores cannot be placed too close to citadel cores
                 }
 
                 float distance2 = sample.dst2(adjustedCorePosition);
@@ -269,7 +413,7 @@ public class RaiderTeam {
         SiegePlugin.announce("[accent]Team " + stringID + " has been destroyed!");
 
         Gamedata.deadRaiderTeams.add(this);
-        Gamedata.raiderTeams.remove(this);
+        unregister(this);
 
         killAll();
 
@@ -297,20 +441,29 @@ public class RaiderTeam {
             }
         }
 
-        Gamedata.raiderTeams.remove(this);
+        unregister(this);
 
         killAll();
     }
 
     // Kill all the team's units and blocks.
     private void killAll() {
-        for (int x = 0; x < world.width(); x++) {
-            for (int y = 0; y < world.height(); y++) {
-                Tile tile = world.tile(x, y);
-                if (tile.build != null && tile.team() == mindustryTeam) {
-                    Time.run(Mathf.random(60f * 6), tile.build::kill);
-                }
-            }
+        if (mindustryTeam == null) {
+            return;
+        }
+        // Buildings die at random times over a few seconds, with each batch sharing a timer
+        Seq<Seq<Building>> batches = new Seq<>(KILL_BATCHES);
+        for (int i = 0; i < KILL_BATCHES; i++) {
+            batches.add(new Seq<>(false));
+        }
+        for (Building building : mindustryTeam.data().buildings) {
+            batches.get(Mathf.random(KILL_BATCHES - 1)).add(building);
+        }
+        for (int i = 0; i < KILL_BATCHES; i++) {
+            if (batches.get(i).isEmpty()) continue;
+            TimerWheel.scheduleEach(i * KILL_SPREAD_MILLIS / KILL_BATCHES, batches.get(i), building -> {
+                if (building.isValid()) building.kill();
+            });
         }
         for (Unit u : Groups.unit) {
             if (u.team == mindustryTeam) {
@@ -321,9 +474,15 @@ public class RaiderTeam {
 
     private void votekickPasses() {
         announceTeam("[blue]Votekick passed. " + votekickTarget.currentPlayer.name() + "[blue] has been kicked from the team and returned to the Citadel.");
-        players.remove(votekickTarget);
-        votekickTarget.currentPlayer.team(Team.green);
-        votekickTarget.spawn(Team.green);
+        PersistentPlayer target = votekickTarget;
+        kick(target);
+        target.spawn(Team.green);
+    }
+
+    // Takes the target of a passed votekick out of the team and ends the votekick, leaving them to be respawned
+    void kick(PersistentPlayer target) {
+        removePlayer(target);
+        target.currentPlayer.team(Team.green);
         votekickClear();
     }
 
@@ -332,8 +491,17 @@ public class RaiderTeam {
         votekickClear();
     }
 
+    private void votekickExpired() {
+        votekickTimer = null;
+        votekickDue = true;
+    }
+
     private void votekickClear() {
-        votekickEnd = Long.MAX_VALUE;
+        if (votekickTimer != null) {
+            votekickTimer.cancel();
+            votekickTimer = null;
+        }
+        votekickDue = false;
         votekickTarget = null;
         votekickOngoing = false;
         yesVoters.clear();
@@ -397,13 +565,7 @@ public class RaiderTeam {
      * @return The player's team if they are in one, otherwise null
      */
     public static RaiderTeam getTeam(PersistentPlayer player) {
-        for (RaiderTeam team : Gamedata.raiderTeams) {
-            if (team.players.contains(player)) {
-                return team;
-            }
-        }
-
-        return null;
+        return player.raiderTeam;
     }
 
     /**
@@ -415,12 +577,7 @@ public class RaiderTeam {
         if (team.id < Constants.TEAM_STARTING_ID) {
             return null;
         }
-        for (RaiderTeam raiderTeam : Gamedata.raiderTeams) {
-            if (raiderTeam.mindustryTeam == team) {
-                return raiderTeam;
-            }
-        }
-        return null;
+        return teamsByMindustryTeam[team.id];
     }
 
 
@@ -539,7 +696,7 @@ public class RaiderTeam {
         }
 
         // Invites a player or accepts a join request to the executor's team
-        private static void teamsInvite(Player executor, String targetPlayerString) {
+        static void teamsInvite(Player executor, String targetPlayerString) {
             RaiderTeam team = RaiderTeam.getTeam(PersistentPlayer.fromPlayer(executor));
 
             if (team == null) {
@@ -571,7 +728,7 @@ public class RaiderTeam {
                     return;
                 }
                 team.joinRequests.remove(targetPlayer);
-                team.players.add(targetPlayer);
+                team.addPlayer(targetPlayer);
                 for (PersistentPlayer player : team.players) {
                     player.currentPlayer.sendMessage(executor.name + " [accent]added " + targetPlayer.currentPlayer.name + " [accent]to the team.");
                 }
@@ -591,7 +748,7 @@ public class RaiderTeam {
 
         // Requests to join, or accepts an invitation to a team
         // Players who are already in a team should be able to request to join (switch) as well, so long as they are in the team setup phase.
-        private static void teamsJoin(Player executor, String targetString) {
+        static void teamsJoin(Player executor, String targetString) {
             if (targetString == null || targetString.isEmpty()) {
                 executor.sendMessage("[red]You must specify a team or player!");
                 return;
@@ -641,7 +798,7 @@ public class RaiderTeam {
                     return;
                 }
                 team.invitations.remove(persistentExecutor);
-                team.players.add(persistentExecutor);
+                team.addPlayer(persistentExecutor);
                 team.announceTeam(executor.name + "[accent] has joined the team.", persistentExecutor);
                 executor.sendMessage("[accent]Joined team " + team.stringID + ".");
                 return;
@@ -658,21 +815,20 @@ public class RaiderTeam {
         }
 
         // Leaves the current team
-        private static void teamsQuit(Player executor) {
+        static void teamsQuit(Player executor) {
             PersistentPlayer persistentExecutor = PersistentPlayer.fromPlayer(executor);
-            for (RaiderTeam team : Gamedata.raiderTeams) {
-                if (team.players.contains(persistentExecutor)) {
-                    team.players.remove(persistentExecutor);
-                    executor.sendMessage("[accent]Left team " + team.stringID);
-                    return;
-                }
+            RaiderTeam team = getTeam(persistentExecutor);
+            if (team != null) {
+                team.removePlayer(persistentExecutor);
+                executor.sendMessage("[accent]Left team " + team.stringID);
+                return;
             }
 
             executor.sendMessage("[accent]You are not currently in a team.");
         }
 
         // Creates a new team
-        private static void teamsCreate(Player executor) {
+        static void teamsCreate(Player executor) {
             if (getTeam(PersistentPlayer.fromPlayer(executor)) != null) {
                 executor.sendMessage("[red]You are already in a team!");
                 return;
@@ -682,7 +838,7 @@ public class RaiderTeam {
 
             executor.sendMessage("[accent]Team created. ID: " + newTeam.stringID);
 
-            Gamedata.raiderTeams.add(newTeam);
+            register(newTeam);
         }
 
         // Opens the current team to unrestricted joining
@@ -712,7 +868,7 @@ public class RaiderTeam {
         }
 
         // Starts a vote to kick a player from the team.
-        private static void teamsKick(Player executor, String targetString) {
+        static void teamsKick(Player executor, String targetString) {
             RaiderTeam team = getTeam(PersistentPlayer.fromPlayer(executor));
 
             if (team == null) {
@@ -744,7 +900,10 @@ public class RaiderTeam {
                 votekickTime = Constants.VOTEKICK_LENGTH_PREGAME_MS;
             }
             team.votekickTarget = targetPlayer;
-            team.votekickEnd = System.currentTimeMillis() + votekickTime;
+            if (team.votekickTimer != null) {
+                team.votekickTimer.cancel();
+            }
+            team.votekickTimer = TimerWheel.schedule(votekickTime, team::votekickExpired);
             executor.sendMessage("[accent]Started vote to kick " + targetPlayer.currentPlayer.name + "[accent] from the team. You have " + (votekickTime / 1000) + " seconds to vote.");
             team.announceTeam("[accent]A vote has been started to kick " + targetPlayer.currentPlayer.name + "[accent] from the team. You have " + (votekickTime / 1000) + " seconds to vote.", executor);
         }
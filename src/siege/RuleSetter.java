@@ -1,84 +1,195 @@
 package siege;
 
+import arc.struct.IntIntMap;
 import arc.struct.ObjectSet;
 import arc.struct.Seq;
+import arc.util.io.Writes;
 import mindustry.content.Blocks;
 import mindustry.content.Items;
 import mindustry.content.UnitTypes;
 import mindustry.game.Rules;
 import mindustry.game.Team;
-import mindustry.gen.Call;
 import mindustry.gen.Groups;
 import mindustry.gen.Player;
+import mindustry.gen.SetRulesCallPacket;
+import mindustry.net.Net;
+import mindustry.net.Packets;
 import mindustry.type.UnitType;
 import mindustry.world.Block;
 import mindustry.world.blocks.defense.turrets.ItemTurret;
 import mindustry.world.blocks.defense.turrets.PowerTurret;
 import mindustry.Vars;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
 public final class RuleSetter {
     public static final float EXTRA_NO_BUILD_RADIUS = 10f;
     public static final float BUILD_SPEED_MULTIPLIER = 3f;
 
     private static Rules rules = new Rules();
 
-    private static final int forcePushPeriod = 30 * 60;
-    private static int forcePushIndex = 0;
+    // Rules sent to players, indexed by banVariant
+    private static Rules[] variantRules;
+    // Each variant's rules as a serialized setRules packet, indexed by banVariant, or null until first sent
+    private static byte[][] variantPackets = new byte[4][];
+    // Largest stream chunk, as NetConnection.sendStream uses
+    private static final int STREAM_CHUNK_BYTES = 900;
+    // Variant of the rules each player was last sent, keyed by player id
+    private static final IntIntMap sentVariants = new IntIntMap();
+
+    // Banned content for each team class and keep state, indexed by banVariant
+    private static ObjectSet<Block>[] bannedBlocks;
+    private static ObjectSet<UnitType>[] bannedUnits;
+    // Whether each block or unit type is banned, indexed by banVariant and then by content id
+    private static boolean[][] blockBanMasks;
+    private static boolean[][] unitBanMasks;
 
     /**
-     * Updates rules over time. Should be called every tick.
+     * Sends rules to every player whose team or keep state no longer matches the rules they were last sent. Should be called every tick.
      */
     public static void update() {
-        forcePushIndex ++;
-        if (forcePushIndex >= forcePushPeriod) {
-            forcePushIndex = 0;
-            pushRules();
+        boolean keepExists = TickContext.get().keepExists;
+        for (Player player : Groups.player) {
+            int variant = banVariant(player.team(), keepExists);
+            if (sentVariants.get(player.id, -1) != variant) {
+                sendRules(player, variant);
+            }
         }
     }
 
-    public static ObjectSet<Block> getBannedBlocks(Team team) {
-        ObjectSet<Block> bannedBlocks = new ObjectSet<Block>(Constants.ALWAYS_BANNED_BLOCKS);
-        if (team == Team.green) {
-            bannedBlocks.addAll(Constants.BANNED_BLOCKS_CITADEL);
-            if (Keep.keepExists()) {
-                bannedBlocks.addAll(Constants.BANNED_BLOCKS_CITADEL_KEEP_ON);
-            }
-        } else {
-            bannedBlocks.addAll(Constants.BANNED_BLOCKS_RAIDERS);
-            if (Keep.keepExists()) {
-                bannedBlocks.addAll(Constants.BANNED_BLOCKS_RAIDERS_KEEP_ON);
-            }
+    // Sends the variant's setRules packet as a stream of its serialized bytes, so that the rules are serialized once per variant instead of once per player
+    private static void sendRules(Player player, int variant) {
+        if (player.con == null) return;
+        if (variantPackets[variant] == null) {
+            SetRulesCallPacket packet = new SetRulesCallPacket();
+            packet.rules = variantRules[variant];
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            packet.write(new Writes(new DataOutputStream(bytes)));
+            variantPackets[variant] = bytes.toByteArray();
+        }
+        byte[] serialized = variantPackets[variant];
+
+        // Clients rebuild a streamed packet from its id and bytes, and then handle it as if it had been sent whole
+        Packets.StreamBegin begin = new Packets.StreamBegin();
+        begin.total = serialized.length;
+        begin.type = Net.getPacketId(new SetRulesCallPacket());
+        player.con.send(begin, true);
+        for (int offset = 0; offset < serialized.length; offset += STREAM_CHUNK_BYTES) {
+            Packets.StreamChunk chunk = new Packets.StreamChunk();
+            chunk.id = begin.id;
+            chunk.data = Arrays.copyOfRange(serialized, offset, Math.min(serialized.length, offset + STREAM_CHUNK_BYTES));
+            player.con.send(chunk, true);
         }
-        return bannedBlocks;
+        sentVariants.put(player.id, variant);
     }
 
-    public static ObjectSet<UnitType> getBannedUnits(Team team) {
-        ObjectSet<UnitType> bannedUnits = new ObjectSet<UnitType>(Constants.ALWAYS_BANNED_UNITS);
-        if (team == Team.green) {
-            bannedUnits.addAll(Constants.BANNED_UNITS_CITADEL);
-            if (Keep.keepExists()) {
-                bannedUnits.addAll(Constants.BANNED_UNITS_CITADEL_KEEP_ON);
-            }
-        } else {
-            bannedUnits.addAll(Constants.BANNED_UNITS_RAIDERS);
-            if (Keep.keepExists()) {
-                bannedUnits.addAll(Constants.BANNED_UNITS_RAIDERS_KEEP_ON);
+    // Index into the ban tables for a team class and keep state
+    private static int banVariant(Team team, boolean keepExists) {
+        return (team == Team.green ? 0 : 2) + (keepExists ? 1 : 0);
+    }
+
+    /**
+     * Precomputes the banned content for every combination of team class (Citadel or Raider) and keep state.
+     */
+    @SuppressWarnings("unchecked")
+    private static void initBans() {
+        bannedBlocks = new ObjectSet[4];
+        bannedUnits = new ObjectSet[4];
+        blockBanMasks = new boolean[4][];
+        unitBanMasks = new boolean[4][];
+        variantRules = new Rules[4];
+        variantPackets = new byte[4][];
+        for (int keep = 0; keep <= 1; keep++) {
+            boolean keepExists = keep == 1;
+            for (Team team : new Team[] {Team.green, Team.blue}) {
+                int variant = banVariant(team, keepExists);
+                ObjectSet<Block> blocks = new ObjectSet<>(Constants.ALWAYS_BANNED_BLOCKS);
+                ObjectSet<UnitType> units = new ObjectSet<>(Constants.ALWAYS_BANNED_UNITS);
+                if (team == Team.green) {
+                    blocks.addAll(Constants.BANNED_BLOCKS_CITADEL);
+                    units.addAll(Constants.BANNED_UNITS_CITADEL);
+                    if (keepExists) {
+                        blocks.addAll(Constants.BANNED_BLOCKS_CITADEL_KEEP_ON);
+                        units.addAll(Constants.BANNED_UNITS_CITADEL_KEEP_ON);
+                    }
+                } else {
+                    blocks.addAll(Constants.BANNED_BLOCKS_RAIDERS);
+                    units.addAll(Constants.BANNED_UNITS_RAIDERS);
+                    if (keepExists) {
+                        blocks.addAll(Constants.BANNED_BLOCKS_RAIDERS_KEEP_ON);
+                        units.addAll(Constants.BANNED_UNITS_RAIDERS_KEEP_ON);
+                    }
+                }
+                bannedBlocks[variant] = blocks;
+                bannedUnits[variant] = units;
+                variantRules[variant] = rules.copy();
+                variantRules[variant].bannedBlocks = blocks;
+                variantRules[variant].bannedUnits = units;
+
+                blockBanMasks[variant] = new boolean[Vars.content.blocks().size];
+                for (Block block : blocks) {
+                    blockBanMasks[variant][block.id] = true;
+                }
+                unitBanMasks[variant] = new boolean[Vars.content.units().size];
+                for (UnitType unit : units) {
+                    unitBanMasks[variant][unit.id] = true;
+                }
             }
         }
-        return bannedUnits;
     }
 
     /**
-     * Updates the rules a player abides by
+     * @param team The team to find banned blocks for
+     * @return The blocks the team may not currently build. Shared, so should not be modified.
+     */
+    public static ObjectSet<Block> getBannedBlocks(Team team) {
+        return bannedBlocks[banVariant(team, TickContext.get().keepExists)];
+    }
+
+    /**
+     * Checks whether a block is currently banned for a team. Does not allocate.
+     * @param team The team that would build the block
+     * @param block The block to check
+     * @return Whether the team may not build the block
+     */
+    public static boolean isBlockBanned(Team team, Block block) {
+        return blockBanMasks[banVariant(team, TickContext.get().keepExists)][block.id];
+    }
+
+    /**
+     * @param team The team to find banned units for
+     * @return The units the team may not currently build. Shared, so should not be modified.
+     */
+    public static ObjectSet<UnitType> getBannedUnits(Team team) {
+        return bannedUnits[banVariant(team, TickContext.get().keepExists)];
+    }
+
+    /**
+     * Checks whether a unit is currently banned for a team. Does not allocate.
+     * @param team The team that would build the unit
+     * @param unit The unit type to check
+     * @return Whether the team may not build the unit
+     */
+    public static boolean isUnitBanned(Team team, UnitType unit) {
+        return unitBanMasks[banVariant(team, TickContext.get().keepExists)][unit.id];
+    }
+
+    /**
+     * Sends a player the rules they abide by, whether or not they already have them
      * @param player The player to send updated rules to
      */
     public static void updatePlayerRules(Player player) {
-        Rules tempRules = RuleSetter.rules.copy();
-        tempRules.bannedBlocks = getBannedBlocks(player.team());
-        tempRules.bannedUnits = getBannedUnits(player.team());
-        for (int i = 0; i < 5; i++) { // Just making sure the packet gets there
-            Call.setRules(player.con, tempRules);
-        }
+        sendRules(player, banVariant(player.team(), TickContext.get().keepExists));
+    }
+
+    /**
+     * Forgets which rules a player was sent, so that they are sent again on the next update. Should be called whenever the player is sent world data, which carries the global rules.
+     * @param player The player whose rules have been replaced
+     */
+    public static void forgetPlayer(Player player) {
+        sentVariants.remove(player.id);
     }
 
     /**
@@ -119,18 +230,17 @@ public final class RuleSetter {
         ((ItemTurret) Blocks.foreshadow).ammoTypes.get(Items.surgeAlloy).buildingDamageMultiplier = 0;
         ((PowerTurret) Blocks.malign).shootType.buildingDamageMultiplier = 0;
 
+        initBans();
         Vars.state.rules = rules.copy();
         pushRules();
     }
 
     /**
-     * Forcefully pushes the current ruleset to all players.
+     * Applies the current ruleset to the game, and resends it to all players on the next update.
      */
     public static void pushRules() {
         Vars.state.rules = rules.copy();
-        Call.setRules(rules);
-        for (Player player : Groups.player) {
-            updatePlayerRules(player);
-        }
+        sentVariants.clear();
+        variantPackets = new byte[4][];
     }
 }
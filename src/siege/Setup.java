@@ -2,7 +2,6 @@ package siege;
 
 import arc.math.Mathf;
 import arc.math.geom.Point2;
-import arc.util.Time;
 import mindustry.content.Blocks;
 import mindustry.game.Team;
 import mindustry.gen.Groups;
@@ -18,6 +17,7 @@ import static mindustry.Vars.*;
 public final class Setup {
     // Measured in elapsed seconds as returned by Gamedata
     private static int nextTimeReminder = 0;
+    private static TimerWheel.Timer reminderTimer = null;
     public static boolean changedToCorePlacement = false;
 
     public static void reset() {
@@ -33,28 +33,44 @@ public final class Setup {
     public static void update() {
         updateRespawn();
 
-        if (Gamedata.gameStartTime()) {
+        long elapsedTimeSeconds = TickContext.get().elapsedTimeSeconds;
+        if (elapsedTimeSeconds >= 0) {
             // Sets a flag which prevents update from being called again
             Setup.beginGame();
         }
 
-        if (!changedToCorePlacement && !Gamedata.teamSetupPhase()) {
+        if (!changedToCorePlacement && elapsedTimeSeconds >= -Constants.CORE_PLACEMENT_TIME_SECONDS) {
             changePhaseToCorePlacement();
-            return;
         }
+    }
 
-        if (Gamedata.elapsedTimeSeconds() >= nextTimeReminder) {
-            if (!changedToCorePlacement) {
-                if ( (-Gamedata.elapsedTimeSeconds() - Constants.CORE_PLACEMENT_TIME_SECONDS) > 0 ) {
-                    SiegePlugin.announce("[accent]" + (-Gamedata.elapsedTimeSeconds() - Constants.CORE_PLACEMENT_TIME_SECONDS) + " Seconds remaining in team setup phase.");
-                }
-            } else {
-                if ( (-Gamedata.elapsedTimeSeconds()) > 0 ) {
-                    SiegePlugin.announce("[accent]" + (-Gamedata.elapsedTimeSeconds()) + " Seconds remaining in core placement phase.");
-                }
+    // Announces the time remaining in the current phase, and schedules the next reminder
+    private static void timeReminder() {
+        reminderTimer = null;
+        if (Gamedata.gameStarted) {
+            return;
+        }
+        long elapsedTimeSeconds = nextTimeReminder;
+        if (!changedToCorePlacement) {
+            if ( (-elapsedTimeSeconds - Constants.CORE_PLACEMENT_TIME_SECONDS) > 0 ) {
+                SiegePlugin.announce("[accent]" + (-elapsedTimeSeconds - Constants.CORE_PLACEMENT_TIME_SECONDS) + " Seconds remaining in team setup phase.");
             }
-            nextTimeReminder += 20;
+        } else {
+            if ( (-elapsedTimeSeconds) > 0 ) {
+                SiegePlugin.announce("[accent]" + (-elapsedTimeSeconds) + " Seconds remaining in core placement phase.");
+            }
+        }
+        nextTimeReminder += 20;
+        scheduleTimeReminder();
+    }
+
+    // Replaces any pending reminder with one for nextTimeReminder
+    private static void scheduleTimeReminder() {
+        if (reminderTimer != null) {
+            reminderTimer.cancel();
         }
+        // Elapsed seconds are truncated towards zero, so a negative elapsed time is reached (almost) a whole second early
+        reminderTimer = TimerWheel.scheduleAt(Gamedata.startTime + (nextTimeReminder - 1) * 1000L + 1, Setup::timeReminder);
     }
 
     // Makes sure all players are spawned in the game, and on the correct (blue) team
@@ -72,10 +88,12 @@ public final class Setup {
     private static void startSetup() {
         // Set the next time reminder to be the next multiple of 20 seconds away from team setup phase end
         nextTimeReminder = -20 * (int)( ((double)Constants.TEAM_SETUP_TIME_SECONDS - Mathf.FLOAT_ROUNDING_ERROR) / 20.0 ) - Constants.CORE_PLACEMENT_TIME_SECONDS;
+        scheduleTimeReminder();
     }
 
     private static void changePhaseToCorePlacement() {
         changedToCorePlacement = true;
+        TickContext.capture();
 
         if (Gamedata.raiderTeams.isEmpty()) {
             SiegePlugin.announce("[sky]Team setup has ended without any teams created.");
@@ -88,9 +106,10 @@ public final class Setup {
         SiegePlugin.announce("[accent]You have " + Constants.CORE_PLACEMENT_TIME_SECONDS + " seconds to move to your desired core location.");
         // Set the next time reminder to be the next multiple of 20 seconds away from core placement phase end
         nextTimeReminder = -20 * (int)( ((double)Constants.CORE_PLACEMENT_TIME_SECONDS - Mathf.FLOAT_ROUNDING_ERROR) / 20.0 );
+        scheduleTimeReminder();
 
         for (RaiderTeam team : Gamedata.raiderTeams) {
-            team.mindustryTeam = Team.all[team.id + Constants.TEAM_STARTING_ID];
+            team.setMindustryTeam(Team.all[team.id + Constants.TEAM_STARTING_ID]);
             team.stringID = "[#" + team.mindustryTeam.color.toString().substring(0, 6) + "]" + team.id + "[]";
         }
 
@@ -102,6 +121,16 @@ public final class Setup {
      */
     public static void beginGame() {
         Gamedata.gameStarted = true;
+        TickContext.capture();
+        if (reminderTimer != null) {
+            reminderTimer.cancel();
+            reminderTimer = null;
+        }
+
+        // Cores placed on the map are never built, so make sure they are all known before placing raider cores around them
+        for (CoreBlock.CoreBuild core : Team.green.cores()) {
+            CoreRegistry.add(core);
+        }
 
         // Add raider team cores
         // Teams can be removed here if they have no players.
@@ -118,7 +147,7 @@ public final class Setup {
             // Kick team if it has no online players at game start
             if (!onlinePlayer) {
                 SiegePlugin.announce("[orange]Team " + team.stringID + " was removed for having no online players at game start.");
-                Gamedata.raiderTeams.remove(team);
+                RaiderTeam.unregister(team);
                 continue;
             }
 
@@ -148,6 +177,7 @@ public final class Setup {
             Tile tile = world.tile(corePoint.x, corePoint.y); // Subtract 1 because of how foundations 'center' tile are measured
             tile.setNet(Blocks.coreFoundation, team.mindustryTeam, 0);
             state.teams.registerCore((CoreBlock.CoreBuild) tile.build);
+            CoreRegistry.add((CoreBlock.CoreBuild) tile.build);
         }
 
         // Everyone starts with a clean slate
@@ -157,6 +187,10 @@ public final class Setup {
             player.lastSeen = System.currentTimeMillis();
             player.lastActed = System.currentTimeMillis();
         }
+        for (RaiderTeam team : Gamedata.raiderTeams) {
+            team.refreshActivity();
+        }
+        SiegePlugin.scheduleServerTimeout();
 
         // Give team loadouts
         Team.green.items().add(Constants.CITADEL_LOADOUT);
@@ -165,21 +199,15 @@ public final class Setup {
         }
 
         // Give keep blocks infinite health
-        if (Keep.keepExists()) {
-            world.tiles.forEach(tile -> {
-                if (tile.build != null && Keep.inKeep(tile.build) && tile.build.team() == Team.green)
-                    tile.build.health = Float.MAX_VALUE;
-            });
+        if (TickContext.get().keepExists) {
+            Keep.makeBuildingsInvulnerable();
         }
-        Keep.keepExisted = Keep.keepExists();
+        Keep.keepExisted = TickContext.get().keepExists;
 
         // Initialize dead zone
         long beginTime = System.currentTimeMillis();
-        CoreBlock.CoreBuild[] cores = Gamedata.getAllCores();
-        for (CoreBlock.CoreBuild core : cores) {
-            DeadZone.reloadCore(core);
-        }
-        Time.run(0.25f * 60f, DeadZone::reloadFloor);
+        DeadZone.rebuild(CoreRegistry.all());
+        TimerWheel.schedule(250, DeadZone::reloadFloor);
         long endTime = System.currentTimeMillis();
         int elapsed = (int) (endTime - beginTime);
         System.out.println(elapsed + " ms to generate floor (" + (elapsed / (1000f / 60f)) + " ticks at 60TPS)");
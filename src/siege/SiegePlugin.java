@@ -3,7 +3,6 @@ package siege;
 import arc.*;
 import arc.graphics.Color;
 import arc.math.Mathf;
-import arc.math.geom.Point2;
 import arc.struct.Seq;
 import arc.util.*;
 import mindustry.Vars;
@@ -27,6 +26,7 @@ public final class SiegePlugin extends Plugin {
 
     public static long PlayersLastSeen;
     public static long PlayersLastActive;
+    private static TimerWheel.Timer serverTimeoutTimer = null;
 
     public static RandomGenerator GENERATOR = RandomGenerator.getDefault();
     /**
@@ -37,6 +37,8 @@ public final class SiegePlugin extends Plugin {
     public void init() {
         System.out.println("SiegePlugin loaded");
 
+        DeadZone.init();
+        PersistentPlayer.loadStore();
         Gamedata.reset();
         Setup.reset();
         RuleSetter.initRules();
@@ -45,24 +47,10 @@ public final class SiegePlugin extends Plugin {
 
         Vars.netServer.admins.addActionFilter((action) -> {
             // Refresh AFK clock
-            PersistentPlayer.fromPlayer(action.player).lastActed = System.currentTimeMillis();
+            PersistentPlayer.fromPlayer(action.player).lastActed = TickContext.get().time;
 
             if (action.type == Administration.ActionType.placeBlock) {
-                // Disallow building if:
-                // Before game start
-                boolean blockEarly = !Gamedata.gameStarted;
-                // On "undecided" team
-                boolean blockBlue = action.player.team() == Team.blue;
-                // Trying to build in the dead zone
-                // - This still works even before deadzone is written because the cache is always up to date
-                boolean blockDeadZone = DeadZone.insideDeadZone(action.tile.x, action.tile.y, action.block, DeadZone.isUpdatingDeadZone());
-                // Trying to build a turret inside of the keep
-                boolean blockKeepTurrets = action.player.team() == Team.green && Keep.keepExists() && Constants.TURRET_BLOCKS.contains(action.block) && Keep.inKeep(action.tile.x, action.tile.y, action.block);
-                // Trying to build a block that's currently banned for your team
-                boolean blockBanned = RuleSetter.getBannedBlocks(action.player.team()).contains(action.block);
-                if (blockEarly || blockBlue || blockDeadZone || blockKeepTurrets || blockBanned) {
-                    return false;
-                }
+                return canPlace(action.player, action.tile.x, action.tile.y, action.block);
             }
 
             return true;
@@ -72,17 +60,33 @@ public final class SiegePlugin extends Plugin {
 
         Events.on(EventType.ResetEvent.class, hostEvent -> {
             System.out.println("ResetEvent Reset");
+            // Tasks from the previous game would otherwise run against the next map
+            TimerWheel.clear();
             Gamedata.reset();
+            PersistentPlayer.evictOffline();
+            PersistentPlayer.saveStore();
             Setup.reset();
             RuleSetter.initRules();
         });
 
+        Events.on(EventType.WorldLoadEvent.class, event -> {
+            DeadZone.reset();
+            CoreRegistry.init();
+            Keep.init();
+            UnitOwner.reset();
+        });
+
+        Events.on(EventType.PlayEvent.class, event -> {
+            // Loading a map replaces the game's rules, and players are sent the new world along with them
+            RuleSetter.pushRules();
+        });
+
         Events.on(EventType.PlayerConnect.class, event -> {
             //
         });
 
         Events.on(EventType.PlayerJoin.class, event -> {
-            PersistentPlayer.fromPlayer(event.player).online = true;
+            PersistentPlayer.fromPlayer(event.player).setOnline(true);
             joinMessage(event.player);
             PersistentPlayer persistentPlayer = PersistentPlayer.fromPlayer(event.player);
             if (Gamedata.getGameState() == GameState.TeamSetup) {
@@ -102,27 +106,38 @@ public final class SiegePlugin extends Plugin {
 
         Events.on(EventType.PlayerLeave.class, event -> {
             // LastSeen is not necessarily correct, but it is correct when no players are online (!player.online or Groups.Players.isEmpty)
-            PersistentPlayer.fromPlayer(event.player).online = false;
             PersistentPlayer.fromPlayer(event.player).lastSeen = System.currentTimeMillis();
+            PersistentPlayer.fromPlayer(event.player).setOnline(false);
             PlayersLastSeen = System.currentTimeMillis();
+            RuleSetter.forgetPlayer(event.player);
+            if (Gamedata.gameStarted && !Gamedata.gameOver) {
+                scheduleServerTimeout();
+            }
         });
 
         Events.on(EventType.BlockDestroyEvent.class, event -> {
+            Keep.removeBuilding(event.tile.build);
             if (Constants.CORE_TYPES.contains(event.tile.block())) {
                 coreDestroy(event.tile.build);
             }
         });
 
         Events.on(EventType.BlockBuildBeginEvent.class, event -> {
-            if (Keep.keepExists() && event.team == Team.green && Keep.inKeep(event.tile.build)) {
+            Keep.refreshBuilding(event.tile);
+            // Upgrading a core in place replaces it at once, firing only this event
+            if (!event.breaking && event.tile.build instanceof CoreBlock.CoreBuild core) {
+                coreCreated(core);
+            }
+            if (TickContext.get().keepExists && event.team == Team.green && Keep.inKeep(event.tile.build)) {
                 // Make keep buildings invincible
                 event.tile.build.health = Float.MAX_VALUE;
             }
         });
 
         Events.on(EventType.BlockBuildEndEvent.class, event -> {
-            if (event.tile.build.block instanceof CoreBlock) {
-                DeadZone.reloadCore((CoreBlock.CoreBuild) event.tile.build);
+            Keep.refreshBuilding(event.tile);
+            if (!event.breaking && event.tile.build instanceof CoreBlock.CoreBuild core) {
+                coreCreated(core);
             }
         });
 
@@ -155,28 +170,56 @@ public final class SiegePlugin extends Plugin {
         });
 
         Events.on(EventType.UnitCreateEvent.class, event -> {
-            if (event.unit.team == Team.green && Keep.keepExists()) {
+            if (event.unit.team == Team.green && TickContext.get().keepExists) {
                 event.unit.damageMultiplier(0f);
             }
 
             // Kill unit if not allowed
-            if (RuleSetter.getBannedUnits(event.unit.team).contains(event.unit.type)) {
+            if (RuleSetter.isUnitBanned(event.unit.team, event.unit.type)) {
                 event.unit.kill();
                 // Call.unitDestroy(event.unit.id); TODO is this necessary for synchronization?
                 announce("[orange]The unit built at [accent]" + (int)event.unit.x + ", " + (int)event.unit.y + "[] is not allowed at this time and has been killed. Run the [accent]/siege[] command to learn more.");
                 return;
             }
 
-            UnitOwner.fromUnit(event.unit); // Register the unit
-            // This doesn't seem to register core units.
-            // A workaround was placed in UnitOwner to automatically scan and update every unit
-            // But it would be more efficient to only have to pull from a seq of UnitOwners rather than re-generate all of them from Groups.unit
-            // TODO: Find a way to register every unit, including core units
+            UnitOwner.register(event.unit); // Register the unit
+            // This doesn't register core units, which UnitOwner picks up from players' units instead.
         });
 
         Events.on(EventType.UnitDestroyEvent.class, event -> {
             UnitOwner.deregister(event.unit); // Deregister the unit
         });
+
+        Events.on(EventType.PayloadDropEvent.class, event -> {
+            // Dropped units are usually still registered, but units that were never registered are picked up here
+            if (event.unit != null) {
+                UnitOwner.register(event.unit);
+            }
+        });
+    }
+
+    /**
+     * Checks whether a player may place a block at a location. Runs for every build action, so it should not allocate.
+     * @param player The player placing the block
+     * @param x The x position of the block
+     * @param y The y position of the block
+     * @param block The block being placed
+     * @return Whether the placement is allowed
+     */
+    static boolean canPlace(Player player, int x, int y, Block block) {
+        // Disallow building if:
+        // Before game start
+        if (!Gamedata.gameStarted) return false;
+        // On "undecided" team
+        Team team = player.team();
+        if (team == Team.blue) return false;
+        // Trying to build a block that's currently banned for your team
+        if (RuleSetter.isBlockBanned(team, block)) return false;
+        // Trying to build a turret inside of the keep
+        if (team == Team.green && TickContext.get().keepExists && Constants.Performance.TURRET_BLOCK_SET.contains(block) && Keep.inKeep(x, y, block)) return false;
+        // Trying to build in the dead zone
+        // - This still works even before deadzone is written because the cache is always up to date
+        return !DeadZone.insideDeadZone(x, y, block, false);
     }
 
     /**
@@ -186,6 +229,8 @@ public final class SiegePlugin extends Plugin {
     private static void update() {
         int code = 0;
         try {
+            TickContext tick = TickContext.capture();
+            TimerWheel.update(tick.time); code = 100;
             RuleSetter.update(); code = 101;
             DeadZone.update(); code = 102;
             UnitOwner.update(); code = 103;
@@ -193,14 +238,14 @@ public final class SiegePlugin extends Plugin {
             if (!Gamedata.gameOver) {
                 checkTeams(); code = 201;
                 fixUnits(); code = 202;
-                if (Keep.keepExists() && Core.graphics.getFrameId() % 10 == 0) {
+                if (tick.keepExists && Core.graphics.getFrameId() >= nextKeepFxFrame) {
                     displayKeepFx(); code = 203;
                 }
 
                 if (!Gamedata.gameStarted) {
                     Setup.update(); code = 301;
                 } else if (!Gamedata.gameOver) {
-                    gameUpdate(); code = 401;
+                    gameUpdate(tick); code = 401;
                 }
             }
         }
@@ -212,17 +257,17 @@ public final class SiegePlugin extends Plugin {
     }
 
     // Manages constant processes during the course of a game (does not run during setup or during game over)
-    private static void gameUpdate() {
-        if (Keep.keepExisted && !Keep.keepExists()) {
+    private static void gameUpdate(TickContext tick) {
+        if (Keep.keepExisted && !tick.keepExists) {
             Keep.keepDissolvedListener();
         }
-        Keep.keepExisted = Keep.keepExists();
+        Keep.keepExisted = tick.keepExists;
 
         for (RaiderTeam raiderTeam : Gamedata.raiderTeams) {
             raiderTeam.update();
         }
 
-        if (Team.green.cores().size == 0) {
+        if (tick.citadelCoreCount == 0) {
             if (Gamedata.raiderTeams.size() == 1) {
                 System.out.println("ending game, raider winner, no more citadel cores");
                 endGame(Gamedata.raiderTeams.get(0).id);
@@ -233,18 +278,74 @@ public final class SiegePlugin extends Plugin {
                 return;
             }
         }
+    }
 
-        // Timeout if no actions are made for long enough or if players are disconnected for too long
-        if (Groups.player.isEmpty() && System.currentTimeMillis() > PlayersLastSeen + Constants.OFFLINE_TIMEOUT_PERIOD) {
+    // Times out the game if no actions are made for long enough or if players are disconnected for too long
+    private static void checkServerTimeout() {
+        serverTimeoutTimer = null;
+        if (!Gamedata.gameStarted || Gamedata.gameOver) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (Groups.player.isEmpty() && now > PlayersLastSeen + Constants.OFFLINE_TIMEOUT_PERIOD) {
             announce("[accent]All players were offline, and the game has timed out.");
             endGame(-1);
             return;
         }
-        if (System.currentTimeMillis() > PlayersLastActive + Constants.AFK_TIMEOUT_PERIOD) {
+        if (now > PlayersLastActive + Constants.AFK_TIMEOUT_PERIOD) {
             announce("[accent]All players were AFK, and the game has timed out.");
             endGame(-1);
             return;
         }
+        scheduleServerTimeout();
+    }
+
+    /**
+     * Schedules the game timeout check for the earliest time the game could time out. Should be called when the game starts and whenever PlayersLastSeen or PlayersLastActive changes.
+     */
+    public static void scheduleServerTimeout() {
+        if (serverTimeoutTimer != null) {
+            serverTimeoutTimer.cancel();
+        }
+        long now = System.currentTimeMillis();
+        long deadline = PlayersLastActive + Constants.AFK_TIMEOUT_PERIOD;
+        // Once passed, the offline deadline only matters again when a player leaves, which reschedules
+        if (now <= PlayersLastSeen + Constants.OFFLINE_TIMEOUT_PERIOD) {
+            deadline = Math.min(deadline, PlayersLastSeen + Constants.OFFLINE_TIMEOUT_PERIOD);
+        }
+        // Timeouts compare with >, so check just after the deadline
+        serverTimeoutTimer = TimerWheel.scheduleAt(deadline + 1, SiegePlugin::checkServerTimeout);
+    }
+
+    /**
+     * Destroys a raider team if it has been offline or AFK for too long, and ends the game if no raider teams remain.
+     * @param team The team whose timeout deadline has passed
+     */
+    public static void checkTeamTimeout(RaiderTeam team) {
+        if (!Gamedata.gameStarted || Gamedata.gameOver || !Gamedata.raiderTeams.contains(team)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (team.TimeOffline(now) > Constants.OFFLINE_TIMEOUT_PERIOD) {
+            announce("[accent]Team " + team.stringID + " has timed out due to offline players.");
+        } else if (team.TimeAFK(now) > Constants.AFK_TIMEOUT_PERIOD) {
+            announce("[accent]Team " + team.stringID + " has timed out due to afk players.");
+        } else {
+            return;
+        }
+        team.destroy();
+        if (Gamedata.raiderTeams.isEmpty()) {
+            endGame(Constants.CITADEL_WINS_ON_RAIDER_TIMEOUT ? 0 : -1);
+        }
+    }
+
+    /**
+     * Called when a core is created.
+     * @param core The core which was created
+     */
+    public static void coreCreated(CoreBlock.CoreBuild core) {
+        CoreRegistry.add(core);
+        DeadZone.addCore(core);
     }
 
     /**
@@ -252,6 +353,8 @@ public final class SiegePlugin extends Plugin {
      * @param core The core which was destroyed
      */
     public static void coreDestroy(Building core) {
+        CoreRegistry.remove(core);
+
         // Notify team's players about dead core
         for (Player player : Groups.player) {
             if (player.team() == core.team) {
@@ -260,7 +363,7 @@ public final class SiegePlugin extends Plugin {
         }
 
         // WIP measure, later on this should be a gradual process
-        Time.run(20f * 60f, () -> DeadZone.reloadCore((CoreBlock.CoreBuild) core));
+        TimerWheel.schedule(20 * 1000, () -> DeadZone.removeCore(core));
     }
 
     /**
@@ -276,7 +379,7 @@ public final class SiegePlugin extends Plugin {
         int highY = vault.tile.y + 1;
         for (int x = lowX; x <= highX; x ++) {
             for (int y = lowY; y <= highY; y ++) {
-                if (DeadZone.hardGetDeadZone(new Point2(x, y))) {
+                if (DeadZone.hardGetDeadZone(x, y)) {
                     executor.sendMessage("[red]Could not build core. This vault is within the dead zone.");
                     return false;
                 }
@@ -366,7 +469,7 @@ public final class SiegePlugin extends Plugin {
 
         final Block core = Blocks.coreShard;
         vault.tile.setNet(core, team, 0);
-        DeadZone.reloadCore((CoreBlock.CoreBuild) vault.tile.build);
+        coreCreated((CoreBlock.CoreBuild) vault.tile.build);
 
         return true;
     }
@@ -378,6 +481,7 @@ public final class SiegePlugin extends Plugin {
     public static void endGame(int winner) {
         System.out.println("Ending the game");
         Gamedata.gameOver = true;
+        TickContext.capture();
         boolean endedGame = false;
 
         if (winner == 0) {
@@ -421,31 +525,22 @@ public final class SiegePlugin extends Plugin {
 
     // Displays an effect across the border of the keep
     private static void displayKeepFx() {
-        // Put effects where the manhattan distance from center is equal to or the largest less than the keep radius
-        float worldMiddleX = (Vars.world.width()-1) / 2f;
-        float worldMiddleY = (Vars.world.height()-1) / 2f;
-        float widthX = Constants.KEEP_RADIUS;
-        if (Math.floor(worldMiddleX) != worldMiddleX) {
-            widthX -= 0.5f;
-        }
-        for (float diffX = -widthX; diffX <= widthX; diffX += 1f) {
-            float diffY = Constants.KEEP_RADIUS - Math.abs(diffX);
-            float x = worldMiddleX + diffX;
-            float y1 = worldMiddleY + diffY;
-            float y2 = worldMiddleY - diffY;
-
-            Call.effect(Constants.KEEP_EFFECT, x * 8f, y1 * 8f, 0, Color.green);
-            if (y1 != y2) //TODO this can be done branchless
-                Call.effect(Constants.KEEP_EFFECT, x * 8f, y2 * 8f, 0, Color.green);
-        }
+        int sent = Keep.displayBorder(Constants.KEEP_EFFECT, Color.green);
+        // Show the border less often when it takes many packets to show, keeping the average under budget
+        int intervals = Math.max(1, Mathf.ceil(sent / (float) Constants.KEEP_EFFECT_PACKET_BUDGET));
+        nextKeepFxFrame = Core.graphics.getFrameId() + (long) Constants.KEEP_EFFECT_INTERVAL_FRAMES * intervals;
     }
 
     // Verifies teams contain players and sets player teams to the correct values
-    private static void checkTeams() {
+    static void checkTeams() {
         if (stopteamfix) {
             return;
         }
-        Gamedata.raiderTeams.removeIf(team -> team.players.isEmpty());
+        for (int i = Gamedata.raiderTeams.size() - 1; i >= 0; i--) {
+            if (Gamedata.raiderTeams.get(i).players.isEmpty()) {
+                RaiderTeam.unregister(Gamedata.raiderTeams.get(i));
+            }
+        }
 
         // Ensure players are in the correct team
         // Setup handles in case of team setup phase
@@ -471,27 +566,15 @@ public final class SiegePlugin extends Plugin {
         if (Gamedata.gameStarted) {
             // Gamedata.raiderTeams may be modified inside this loop.
             RaiderTeam[] teams = Gamedata.raiderTeams.toArray(new RaiderTeam[0]);
-            int winnerCode = 0;
+            // Timeouts are checked by each team's timer, see checkTeamTimeout
             for (RaiderTeam team : teams) {
                 if (team.mindustryTeam.cores().size == 0) {
                     team.destroy();
-                } else if (team.TimeOffline() > Constants.OFFLINE_TIMEOUT_PERIOD) {
-                    announce("[accent]Team " + team.stringID + " has timed out due to offline players.");
-                    team.destroy();
-                    if (!Constants.CITADEL_WINS_ON_RAIDER_TIMEOUT) {
-                        winnerCode = -1;
-                    }
-                } else if (team.TimeAFK() > Constants.AFK_TIMEOUT_PERIOD) {
-                    announce("[accent]Team " + team.stringID + " has timed out due to afk players.");
-                    team.destroy();
-                    if (!Constants.CITADEL_WINS_ON_RAIDER_TIMEOUT) {
-                        winnerCode = -1;
-                    }
                 }
             }
 
             if (Gamedata.raiderTeams.isEmpty()) {
-                endGame(winnerCode);
+                endGame(0);
             }
         }
     }
@@ -508,6 +591,8 @@ public final class SiegePlugin extends Plugin {
 
     public static boolean stopteamfix = false;
     private static boolean debugMode = false;
+    // Frame on which the keep border is next shown
+    private static long nextKeepFxFrame = 0;
 
     @Override
     public void registerClientCommands(CommandHandler handler) {
@@ -569,7 +654,7 @@ public final class SiegePlugin extends Plugin {
             Team team = player.team();
             Tile tile = Vars.world.tile(player.tileX(), player.tileY());
             tile.setNet(Blocks.coreShard, team, 0);
-            DeadZone.reloadCore((CoreBlock.CoreBuild) tile.build);
+            coreCreated((CoreBlock.CoreBuild) tile.build);
         });
         handler.<Player>register("toggleteamfix", "DEBUG - Toggles whether the checkTeams method can run.", (args, player) -> {
             if (!debugMode) {
@@ -644,7 +729,7 @@ public final class SiegePlugin extends Plugin {
             case GameOver -> executor.sendMessage("[#6080FF]The game is over. " + timeString);
         }
         executor.sendMessage("[#6080FF]" + Groups.player.size() + " players online. " + Gamedata.raiderTeams.size() + " raider team(s) are alive.");
-        executor.sendMessage("[#6080FF]" + Gamedata.getAllCores().length + " core(s) and " + Groups.unit.size() + " unit(s) are alive.");
+        executor.sendMessage("[#6080FF]" + CoreRegistry.size() + " core(s) and " + Groups.unit.size() + " unit(s) are alive.");
         executor.sendMessage("[#6080FF]" + Core.graphics.getFramesPerSecond() + " TPS on " + Core.app.getJavaHeap() / 1024 / 1024 + " MB of memory");
     }
 
@@ -0,0 +1,43 @@
+package siege;
+
+import mindustry.game.Team;
+
+/**
+ * A snapshot of the game's state, captured once at the start of every tick so that everything within a tick sees the same values.
+ */
+public final class TickContext {
+    public final long time; // System time in milliseconds at capture
+    public final long elapsedTimeSeconds; // As returned by Gamedata.elapsedTimeSeconds
+    public final boolean keepExists;
+    public final GameState gameState;
+    public final int citadelCoreCount;
+
+    private static TickContext current;
+
+    private TickContext(long time) {
+        this.time = time;
+        this.elapsedTimeSeconds = Gamedata.elapsedTimeSeconds(time);
+        this.keepExists = Keep.keepExists(elapsedTimeSeconds);
+        this.gameState = Gamedata.getGameState(keepExists);
+        this.citadelCoreCount = Team.green.cores().size;
+    }
+
+    /**
+     * Takes a new snapshot. Should be called at the start of every tick, and after anything that changes the phase of the game.
+     * @return The new snapshot
+     */
+    public static TickContext capture() {
+        current = new TickContext(System.currentTimeMillis());
+        return current;
+    }
+
+    /**
+     * @return The snapshot of the current tick, capturing one if none has been taken yet
+     */
+    public static TickContext get() {
+        if (current == null) {
+            return capture();
+        }
+        return current;
+    }
+}
@@ -0,0 +1,197 @@
+package siege;
+
+import arc.func.Cons;
+import arc.struct.Seq;
+
+/**
+ * Runs tasks once a given amount of time has passed.
+ * Timers are kept in a hierarchical hashed wheel, so scheduling and cancelling take constant time, and each update only touches the timers which fire or move down a level.
+ */
+public final class TimerWheel {
+    // Length of one wheel tick, in milliseconds
+    private static final long TICK_MILLIS = 10;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    // Four levels of 64 slots reach 64^4 ticks (about 46 hours) ahead. Later timers wait in the last level until they come into range.
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    // Sentinel heads of the doubly linked timer list in each slot
+    private static final Timer[][] slots = new Timer[LEVELS][SLOTS];
+    // The next wheel tick to be processed
+    private static long nextTick = -1;
+
+    static {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer head = new Timer(0, null);
+                head.next = head;
+                head.previous = head;
+                slots[level][slot] = head;
+            }
+        }
+    }
+
+    /**
+     * A handle on a scheduled task.
+     */
+    public static final class Timer {
+        private final long deadlineTick;
+        private final Runnable task;
+        private Timer next;
+        private Timer previous;
+
+        private Timer(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        /**
+         * Stops the task from running. Does nothing if it has already run or been cancelled.
+         */
+        public void cancel() {
+            unlink(this);
+        }
+
+        /**
+         * @return Whether the task is still waiting to run
+         */
+        public boolean isScheduled() {
+            return next != null;
+        }
+    }
+
+    /**
+     * Runs a task after a delay.
+     * @param delayMillis The delay, in milliseconds
+     * @param task The task to run
+     * @return A handle which can cancel the task
+     */
+    public static Timer schedule(long delayMillis, Runnable task) {
+        return scheduleAt(System.currentTimeMillis() + delayMillis, task);
+    }
+
+    /**
+     * Runs a task once a given time has been reached.
+     * @param timeMillis The system time to run the task at, in milliseconds
+     * @param task The task to run
+     * @return A handle which can cancel the task
+     */
+    public static Timer scheduleAt(long timeMillis, Runnable task) {
+        if (nextTick < 0) {
+            nextTick = System.currentTimeMillis() / TICK_MILLIS;
+        }
+        // Round up, so that tasks never run early
+        Timer timer = new Timer((timeMillis + TICK_MILLIS - 1) / TICK_MILLIS, task);
+        insert(timer);
+        return timer;
+    }
+
+    /**
+     * Runs an action on many items after a delay, using a single timer for all of them.
+     * @param delayMillis The delay, in milliseconds
+     * @param items The items to run the action on. Should not be modified afterwards.
+     * @param action The action to run on each item
+     * @param <T> The type of the items
+     * @return A handle which can cancel the action
+     */
+    public static <T> Timer scheduleEach(long delayMillis, Seq<T> items, Cons<T> action) {
+        return schedule(delayMillis, () -> {
+            for (int i = 0; i < items.size; i++) {
+                action.get(items.get(i));
+            }
+        });
+    }
+
+    /**
+     * Runs every task whose time has come. Should be called once every tick.
+     * @param now The current system time, in milliseconds
+     */
+    public static void update(long now) {
+        long currentTick = now / TICK_MILLIS;
+        if (nextTick < 0) {
+            nextTick = currentTick;
+        }
+        while (nextTick <= currentTick) {
+            int slot = (int) (nextTick & SLOT_MASK);
+            // Whenever a level wraps around, move the next slot of the level above down into the lower levels
+            for (int level = 1; level < LEVELS && slot == 0; level++) {
+                slot = (int) ((nextTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                cascade(level, slot);
+            }
+            Timer head = slots[0][(int) (nextTick & SLOT_MASK)];
+            nextTick++;
+            // Tasks may schedule or cancel other timers, so take each timer off the list before running it
+            while (head.next != head) {
+                Timer timer = head.next;
+                unlink(timer);
+                try {
+                    timer.task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels every scheduled task. Should be called when the game is reset, as Time.clear() does for Time.run tasks.
+     */
+    public static void clear() {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer head = slots[level][slot];
+                while (head.next != head) {
+                    unlink(head.next);
+                }
+            }
+        }
+        nextTick = -1;
+    }
+
+    // Reinserts every timer in a slot, which places each one in a lower level
+    private static void cascade(int level, int slot) {
+        Timer head = slots[level][slot];
+        Timer timer = head.next;
+        head.next = head;
+        head.previous = head;
+        while (timer != head) {
+            Timer following = timer.next;
+            insert(timer);
+            timer = following;
+        }
+    }
+
+    // Places a timer in the slot of the lowest level which reaches its deadline
+    private static void insert(Timer timer) {
+        long delta = timer.deadlineTick - nextTick;
+        long tick = timer.deadlineTick;
+        if (delta < 0) {
+            // Already due, so run on the next tick processed
+            tick = nextTick;
+            delta = 0;
+        } else if (delta > MAX_DELTA) {
+            // Wait in the furthest slot, and be placed again once it is reached
+            tick = nextTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        Timer head = slots[level][(int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+        timer.previous = head.previous;
+        timer.next = head;
+        head.previous.next = timer;
+        head.previous = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        if (timer.next == null) return;
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.next = null;
+        timer.previous = null;
+    }
+}
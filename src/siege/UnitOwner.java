@@ -1,90 +1,231 @@
 package siege;
 
-import arc.struct.Seq;
+import arc.struct.IntIntMap;
 import mindustry.game.Team;
 import mindustry.gen.Groups;
+import mindustry.gen.Player;
 import mindustry.gen.Unit;
 
-public class UnitOwner {
-    public final Unit unit;
-    private float externalHealth;
-    private float trueMaxHealth;
-    private boolean wasInKeep;
+import java.util.Arrays;
 
-    private static final Seq<UnitOwner> unitOwners = new Seq<>();
+import static mindustry.Vars.world;
+
+/**
+ * Keeps the plugin's state for every registered unit in parallel arrays indexed by slot, so that the per-tick passes run over contiguous memory.
+ */
+public final class UnitOwner {
+    private static final byte IMMUNE = 1; // The unit's type is immune to the dead zone
+    private static final byte IN_KEEP = 2; // The unit was inside the keep last update
+    private static final byte DEAD = 4; // The unit's tile is in the dead zone
+    private static final byte KEEP_AREA = 8; // The unit's tile could be in the keep
+    private static final byte DETACHED = 16; // The unit is alive but not in the world, such as while carried as a payload
+    private static final int UNCLASSIFIED = Integer.MIN_VALUE; // Tile index of a unit which has not been classified yet
+
+    // Slot of each registered unit, keyed by unit id
+    private static final IntIntMap slots = new IntIntMap();
+    private static int size = 0;
+    private static Unit[] units = new Unit[0];
+    private static float[] health = new float[0]; // Snapshot of unit.health, written back after each update
+    private static float[] maxHealth = new float[0]; // Snapshot of unit.maxHealth, written back after each update
+    private static float[] externalHealth = new float[0]; // Health the unit had when it entered the keep
+    private static float[] trueMaxHealth = new float[0];
+    private static int[] tileIndex = new int[0]; // Row-major index of the tile the unit is on, or -1 if off the map
+    private static byte[] flags = new byte[0];
+    private static byte[] team = new byte[0];
+
+    // Dead zone version that the DEAD flags were last classified against
+    private static int deadZoneVersion = -1;
     private static long previousDeadZoneCheck = 0L;
 
-    private UnitOwner(Unit unit) {
-        this.unit = unit;
-        this.externalHealth = unit.health;
-        this.trueMaxHealth = unit.maxHealth;
-        this.wasInKeep = false;
-        unitOwners.add(this);
+    /**
+     * Forgets every registered unit and registers the units of the current world. Should be called once the world has loaded.
+     */
+    public static void reset() {
+        for (int i = 0; i < size; i++) {
+            units[i] = null;
+        }
+        size = 0;
+        slots.clear();
+        for (Unit unit : Groups.unit) {
+            register(unit);
+        }
     }
 
     public static void update() {
-        for (Unit baseUnit : Groups.unit) fromUnit(baseUnit);
+        // Core units are spawned without a UnitCreateEvent, but they are always controlled by a player
+        for (Player player : Groups.player) {
+            Unit unit = player.unit();
+            if (unit != null && unit.isValid()) {
+                register(unit);
+            }
+        }
+
+        gather();
+        updateKeep();
 
-        for (UnitOwner unit : unitOwners) unit.updateUnit();
+        if (Gamedata.gameStarted && !Gamedata.gameOver) {
+            if (previousDeadZoneCheck == 0L) {
+                previousDeadZoneCheck = System.currentTimeMillis() - (1000 / 60);
+            }
+            float elapsedTimeSeconds = (System.currentTimeMillis() - previousDeadZoneCheck) / 1000f;
+            float elapsedTimeTicks = elapsedTimeSeconds * 60f;
+            float constantDamage = Constants.DEAD_ZONE_DAMAGE_CONSTANT_TICK * elapsedTimeTicks;
+            float percentDamage = Constants.DEAD_ZONE_DAMAGE_PERCENT_TICK * elapsedTimeTicks;
+            previousDeadZoneCheck = System.currentTimeMillis();
+
+            updateDeadZone(constantDamage, percentDamage);
+        }
 
-        if (!Gamedata.gameStarted) return;
-        if (Gamedata.gameOver) return;
+        apply();
+    }
 
-        if (previousDeadZoneCheck == 0L) {
-            previousDeadZoneCheck = System.currentTimeMillis() - (1000 / 60);
+    // Drops units which have died and snapshots the state of the rest. Only units which changed tiles are classified again.
+    private static void gather() {
+        int width = world.width();
+        int height = world.height();
+        // Before the cache is built for this world, dead zone bits would be read from a different map
+        boolean deadZoneReady = DeadZone.isReady();
+        // Backwards, so that removing only moves slots which have already been gathered
+        for (int i = size - 1; i >= 0; i--) {
+            Unit unit = units[i];
+            if (unit.dead) {
+                removeSlot(i);
+                continue;
+            }
+            // Units leave the world without dying when picked up as payloads, and units built by factories are created before they are added.
+            // Both are kept, but skipped until they are in the world.
+            if (!unit.isAdded()) {
+                flags[i] |= DETACHED;
+                continue;
+            }
+            flags[i] &= ~DETACHED;
+            health[i] = unit.health;
+            maxHealth[i] = unit.maxHealth;
+            team[i] = (byte) unit.team.id;
+            int x = unit.tileX();
+            int y = unit.tileY();
+            int tile = (x < 0 || y < 0 || x >= width || y >= height) ? -1 : x + y * width;
+            if (tile != tileIndex[i]) {
+                tileIndex[i] = tile;
+                flags[i] = (byte) (flags[i] & ~(DEAD | KEEP_AREA));
+                if (deadZoneReady && DeadZone.getDeadZoneIndex(tile)) flags[i] |= DEAD;
+                if (tile >= 0 && Keep.inKeep(x, y)) flags[i] |= KEEP_AREA;
+            }
         }
-        float elapsedTimeSeconds = (System.currentTimeMillis() - previousDeadZoneCheck) / 1000f;
-        float elapsedTimeTicks = elapsedTimeSeconds * 60f;
-        float constantDamage = Constants.DEAD_ZONE_DAMAGE_CONSTANT_TICK * elapsedTimeTicks;
-        float percentDamage = Constants.DEAD_ZONE_DAMAGE_PERCENT_TICK * elapsedTimeTicks;
-        previousDeadZoneCheck = System.currentTimeMillis();
-
-        for (UnitOwner unit : unitOwners) {
-            if (DeadZone.getDeadZone(unit.unit.tileOn())  &&  !Constants.DEAD_ZONE_IMMUNE_TYPES.contains(unit.unit.type)) {
-                unit.unit.health -= constantDamage + unit.unit.maxHealth * percentDamage;
-                if (unit.unit.health <= 0.0f && !unit.unit.dead) {
-                    unit.unit.kill();
-                } else {
-                    unit.unit.maxHealth = unit.unit.health; // Healing strictly does not work within the deadzone.
+
+        // Units which stayed put need classifying again only if the dead zone itself changed
+        int version = DeadZone.getVersion();
+        if (version != deadZoneVersion) {
+            deadZoneVersion = version;
+            for (int i = 0; i < size; i++) {
+                flags[i] = (byte) (deadZoneReady && DeadZone.getDeadZoneIndex(tileIndex[i]) ? flags[i] | DEAD : flags[i] & ~DEAD);
+            }
+        }
+    }
+
+    // Makes green units invulnerable while they are inside the keep
+    private static void updateKeep() {
+        boolean keepExists = TickContext.get().keepExists;
+        byte green = (byte) Team.green.id;
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & DETACHED) != 0) continue;
+            boolean inKeep = keepExists && team[i] == green && (flags[i] & KEEP_AREA) != 0;
+            boolean wasInKeep = (flags[i] & IN_KEEP) != 0;
+            if (inKeep && !wasInKeep) {
+                externalHealth[i] = health[i];
+                health[i] = Float.MAX_VALUE;
+                flags[i] |= IN_KEEP;
+            }
+            if (!inKeep && wasInKeep) {
+                health[i] = externalHealth[i];
+                flags[i] &= ~IN_KEEP;
+            }
+        }
+    }
+
+    // Damages units inside the dead zone. Only touches the arrays, so that the apply phase alone writes to units.
+    private static void updateDeadZone(float constantDamage, float percentDamage) {
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & DETACHED) != 0) continue;
+            if ((flags[i] & (IMMUNE | DEAD)) == DEAD) {
+                health[i] -= constantDamage + maxHealth[i] * percentDamage;
+                if (health[i] > 0.0f) {
+                    maxHealth[i] = health[i]; // Healing strictly does not work within the deadzone.
                 }
             } else {
-                unit.unit.maxHealth = unit.trueMaxHealth; // Reset maxhealth to standard
+                maxHealth[i] = trueMaxHealth[i]; // Reset maxhealth to standard
             }
         }
     }
 
-    public static UnitOwner fromUnit(Unit unit) {
-        for (UnitOwner unitOwner : unitOwners) {
-            if (unitOwner.unit.equals(unit)) {
-                return unitOwner;
+    // Writes the snapshots back to the units
+    private static void apply() {
+        // Backwards, since killing a unit may deregister it
+        for (int i = size - 1; i >= 0; i--) {
+            if ((flags[i] & DETACHED) != 0) continue;
+            Unit unit = units[i];
+            unit.health = health[i];
+            unit.maxHealth = maxHealth[i];
+            if (health[i] <= 0.0f && !unit.dead) {
+                unit.kill();
             }
         }
-
-        return new UnitOwner(unit);
     }
 
-    public static void deregister(UnitOwner unitOwner) {
-        unitOwners.remove(unitOwner);
+    /**
+     * Registers a unit, if it has not been already.
+     * @param unit The unit to register
+     */
+    public static void register(Unit unit) {
+        if (slots.containsKey(unit.id)) return;
+        if (size == units.length) {
+            grow(Math.max(16, size * 2));
+        }
+        int slot = size++;
+        units[slot] = unit;
+        health[slot] = unit.health;
+        maxHealth[slot] = unit.maxHealth;
+        externalHealth[slot] = unit.health;
+        trueMaxHealth[slot] = unit.maxHealth;
+        tileIndex[slot] = UNCLASSIFIED;
+        flags[slot] = Constants.DEAD_ZONE_IMMUNE_TYPES.contains(unit.type) ? IMMUNE : 0;
+        team[slot] = (byte) unit.team.id;
+        slots.put(unit.id, slot);
     }
 
     public static void deregister(Unit unit) {
-        deregister(fromUnit(unit));
+        int slot = slots.get(unit.id, -1);
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
     }
 
-    private void updateUnit() {
-        if (unit.dead()) {
-            deregister(this);
-            return;
+    // Frees a slot by moving the last slot into it
+    private static void removeSlot(int slot) {
+        int last = --size;
+        slots.remove(units[slot].id);
+        if (slot != last) {
+            units[slot] = units[last];
+            health[slot] = health[last];
+            maxHealth[slot] = maxHealth[last];
+            externalHealth[slot] = externalHealth[last];
+            trueMaxHealth[slot] = trueMaxHealth[last];
+            tileIndex[slot] = tileIndex[last];
+            flags[slot] = flags[last];
+            team[slot] = team[last];
+            slots.put(units[slot].id, slot);
         }
+        units[last] = null;
+    }
 
-        boolean inKeep = Keep.keepExists() && unit.team == Team.green && Keep.inKeep(unit.tileOn());
-        if (inKeep && !wasInKeep) {
-            externalHealth = unit.health;
-            unit.health = Float.MAX_VALUE;
-        }
-        if (!inKeep && wasInKeep) {
-            unit.health = externalHealth;
-        }
-        wasInKeep = inKeep;
+    private static void grow(int capacity) {
+        units = Arrays.copyOf(units, capacity);
+        health = Arrays.copyOf(health, capacity);
+        maxHealth = Arrays.copyOf(maxHealth, capacity);
+        externalHealth = Arrays.copyOf(externalHealth, capacity);
+        trueMaxHealth = Arrays.copyOf(trueMaxHealth, capacity);
+        tileIndex = Arrays.copyOf(tileIndex, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        team = Arrays.copyOf(team, capacity);
     }
 }
@@ -0,0 +1,183 @@
+package siege;
+
+import mindustry.Vars;
+import mindustry.game.Team;
+import mindustry.gen.Groups;
+import mindustry.gen.Player;
+import mindustry.net.Net;
+import mindustry.net.NetConnection;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the player and mindustry team lookups stay consistent with the team rosters, driving the rosters through the /team commands and the plugin's team checks.
+ */
+public class RaiderTeamIndexTest {
+    private static int nextPlayer = 0;
+
+    @BeforeAll
+    public static void setupGame() {
+        // Destroyed teams touch the game state
+        Vars.state = new mindustry.core.GameState();
+        // Not a server, so messages to players are dropped
+        Vars.net = new Net(null);
+        Groups.init();
+    }
+
+    @BeforeEach
+    public void resetGame() {
+        TimerWheel.clear();
+        Gamedata.reset();
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+
+    // Makes a player with its own name and uuid, and registers them as joining the server does
+    private static Player player() {
+        int id = nextPlayer++;
+        Player player = Player.create();
+        player.name = "player" + id;
+        player.con = new NetConnection("127.0.0.1") {
+            @Override
+            public void send(Object object, boolean reliable) {}
+
+            @Override
+            public void close() {}
+        };
+        player.con.uuid = "uuid" + id;
+        PersistentPlayer.fromPlayer(player);
+        return player;
+    }
+
+    private static PersistentPlayer persistent(Player player) {
+        return PersistentPlayer.fromPlayer(player);
+    }
+
+    private static RaiderTeam create(Player owner) {
+        RaiderTeam.Commands.teamsCreate(owner);
+        return RaiderTeam.getTeam(persistent(owner));
+    }
+
+    // Invites the joiner and has them accept
+    private static void join(RaiderTeam team, Player inviter, Player joiner) {
+        RaiderTeam.Commands.teamsInvite(inviter, joiner.name);
+        RaiderTeam.Commands.teamsJoin(joiner, String.valueOf(team.id));
+    }
+
+    @Test
+    public void create() {
+        Player owner = player();
+        RaiderTeam team = create(owner);
+
+        assertNotNull(team);
+        assertTrue(Gamedata.raiderTeams.contains(team));
+        assertTrue(team.players.contains(persistent(owner), true));
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+
+    @Test
+    public void join() {
+        Player owner = player();
+        Player joiner = player();
+        RaiderTeam team = create(owner);
+
+        join(team, owner, joiner);
+
+        assertSame(team, RaiderTeam.getTeam(persistent(joiner)));
+        assertEquals(2, team.players.size);
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+
+    @Test
+    public void joinFromAnotherTeam() {
+        Player first = player();
+        Player second = player();
+        RaiderTeam firstTeam = create(first);
+        RaiderTeam secondTeam = create(second);
+
+        join(firstTeam, first, second);
+
+        assertSame(firstTeam, RaiderTeam.getTeam(persistent(second)));
+        assertFalse(secondTeam.players.contains(persistent(second), true));
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+
+    @Test
+    public void quit() {
+        Player owner = player();
+        Player member = player();
+        RaiderTeam team = create(owner);
+        join(team, owner, member);
+
+        RaiderTeam.Commands.teamsQuit(member);
+
+        assertNull(RaiderTeam.getTeam(persistent(member)));
+        assertSame(team, RaiderTeam.getTeam(persistent(owner)));
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+
+    @Test
+    public void quitLastMember() {
+        Player owner = player();
+        RaiderTeam team = create(owner);
+
+        RaiderTeam.Commands.teamsQuit(owner);
+        SiegePlugin.checkTeams();
+
+        assertNull(RaiderTeam.getTeam(persistent(owner)));
+        assertFalse(Gamedata.raiderTeams.contains(team));
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+
+    @Test
+    public void kick() {
+        Player owner = player();
+        Player target = player();
+        RaiderTeam team = create(owner);
+        join(team, owner, target);
+
+        RaiderTeam.Commands.teamsKick(owner, target.name);
+        assertSame(persistent(target), team.votekickTarget);
+        team.kick(team.votekickTarget);
+
+        assertNull(RaiderTeam.getTeam(persistent(target)));
+        assertSame(team, RaiderTeam.getTeam(persistent(owner)));
+        assertNull(team.votekickTarget);
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+
+    @Test
+    public void destroy() {
+        Player owner = player();
+        Player member = player();
+        RaiderTeam team = create(owner);
+        join(team, owner, member);
+        Team mindustryTeam = Team.all[Constants.TEAM_STARTING_ID + 1];
+        team.setMindustryTeam(mindustryTeam);
+        assertSame(team, RaiderTeam.getTeam(mindustryTeam));
+        // Online members would be respawned at a Citadel core, which this world does not have
+        persistent(owner).setOnline(false);
+        persistent(member).setOnline(false);
+
+        team.destroy();
+
+        assertNull(RaiderTeam.getTeam(persistent(owner)));
+        assertNull(RaiderTeam.getTeam(persistent(member)));
+        assertNull(RaiderTeam.getTeam(mindustryTeam));
+        assertFalse(Gamedata.raiderTeams.contains(team));
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+
+    @Test
+    public void reset() {
+        RaiderTeam team = create(player());
+        team.setMindustryTeam(Team.all[Constants.TEAM_STARTING_ID + 2]);
+
+        Gamedata.reset();
+
+        assertNull(RaiderTeam.getTeam(Team.all[Constants.TEAM_STARTING_ID + 2]));
+        assertTrue(RaiderTeam.indexConsistent());
+    }
+}